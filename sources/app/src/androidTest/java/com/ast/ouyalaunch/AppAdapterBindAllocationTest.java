@@ -0,0 +1,153 @@
+package com.ast.ouyalaunch;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Binding a tile that was bound before must not allocate: the grid is scrolled on Dalvik-era
+ * hardware, where every allocation in the bind path adds GC pauses.
+ *
+ * Half of the apps have a thumbnail (decoded once, then served from the memory cache), the other
+ * half have no icon file at all (negative lookup). Counted are the binds of the main thread after
+ * one warm-up round: rebinding in place and recycle-then-rebind, as RecyclerView does when tiles
+ * scroll out and back in.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AppAdapterBindAllocationTest {
+
+    private static final int TILES = 8;
+    private static final int ROUNDS = 50;
+    private static final long DECODE_TIMEOUT_MS = 5000;
+
+    private Instrumentation instr;
+    private Context ctx;
+    private final List<File> written = new ArrayList<>();
+
+    private AppAdapter adapter;
+    private final List<AppAdapter.VH> holders = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        instr = InstrumentationRegistry.getInstrumentation();
+        ctx = instr.getTargetContext();
+
+        IconCacheManager icons = IconCacheManager.get(ctx);
+        final List<AppEntry> apps = new ArrayList<>();
+        for (int i = 0; i < TILES; i++) {
+            String pkg = "test.alloc.app" + i;
+            File icon = new File(icons.getIconDir(), pkg + ".png");
+            if (i % 2 == 0) {
+                File thumb = new File(IconThumbnails.thumbPathFor(icon.getAbsolutePath()));
+                writePng(thumb);
+                icons.onWritten(thumb);
+            }
+            apps.add(new AppEntry(pkg, "App " + i, LibraryRepository.DEFAULT_GENRE, false, icon.getAbsolutePath()));
+        }
+
+        instr.runOnMainSync(() -> {
+            RecyclerView parent = new RecyclerView(ctx);
+            parent.setLayoutManager(new GridLayoutManager(ctx, 4));
+            adapter = new AppAdapter(ctx, apps, null);
+            for (int i = 0; i < TILES; i++) {
+                AppAdapter.VH h = adapter.onCreateViewHolder(parent, 0);
+                adapter.onBindViewHolder(h, i);
+                holders.add(h);
+            }
+        });
+        awaitThumbnails();
+    }
+
+    @After
+    public void tearDown() {
+        instr.runOnMainSync(() -> adapter.getIconLoader().cancelAll());
+        IconCacheManager icons = IconCacheManager.get(ctx);
+        for (File f : written) icons.delete(f);
+    }
+
+    @Test
+    public void rebindInPlaceAllocatesNothing() {
+        assertEquals(0, countMainThreadAllocations(() -> {
+            for (int r = 0; r < ROUNDS; r++) {
+                for (int i = 0; i < TILES; i++) adapter.onBindViewHolder(holders.get(i), i);
+            }
+        }));
+    }
+
+    @Test
+    public void recycleAndRebindAllocatesNothing() {
+        assertEquals(0, countMainThreadAllocations(() -> {
+            for (int r = 0; r < ROUNDS; r++) {
+                for (int i = 0; i < TILES; i++) {
+                    adapter.onViewRecycled(holders.get(i));
+                    adapter.onBindViewHolder(holders.get(i), i);
+                }
+            }
+        }));
+    }
+
+    // ---------- helpers ----------
+
+    /** Runs {@code r} once unmeasured (class loading, lazy init), then counts a second run. */
+    private int countMainThreadAllocations(final Runnable r) {
+        final int[] count = new int[1];
+        instr.runOnMainSync(() -> {
+            r.run();
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            try {
+                r.run();
+            } finally {
+                Debug.stopAllocCounting();
+            }
+            count[0] = Debug.getThreadAllocCount();
+        });
+        return count[0];
+    }
+
+    private void awaitThumbnails() throws InterruptedException {
+        long until = SystemClock.uptimeMillis() + DECODE_TIMEOUT_MS;
+        final boolean[] done = new boolean[1];
+        while (!done[0] && SystemClock.uptimeMillis() < until) {
+            Thread.sleep(20);
+            instr.runOnMainSync(() -> {
+                done[0] = true;
+                for (int i = 0; i < TILES; i += 2) {
+                    if (holders.get(i).img.getDrawable() == null) done[0] = false;
+                }
+            });
+        }
+        assertTrue("thumbnails not decoded within " + DECODE_TIMEOUT_MS + " ms", done[0]);
+    }
+
+    private void writePng(File f) throws Exception {
+        Bitmap bm = Bitmap.createBitmap(32, 32, Bitmap.Config.ARGB_8888);
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            bm.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } finally {
+            out.close();
+        }
+        written.add(f);
+    }
+}
@@ -0,0 +1,414 @@
+package com.ast.ouyalaunch;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Lightweight, single-open ZIP reader for finding "ouya_icon.png" inside an APK.
+ *
+ * Unlike java.util.zip.ZipFile it does not build an index of all entries: it locates the
+ * End-of-Central-Directory record, maps the central directory and walks it once, comparing the raw
+ * name bytes against the icon file name. Only matching entries are turned into Strings (for the
+ * density ranking). The chosen entry is then read through the same FileChannel, so the APK is
+ * opened exactly once per scan.
+ *
+ * {@link #copyPngTo(Entry, File)} writes the entry straight to the icon cache (channel transfer for
+ * STORED entries, streaming inflate for DEFLATED ones) after a PNG header sanity check, so valid
+ * icons never go through a Bitmap decode/encode round trip.
+ *
+ * Zip64 archives, encrypted entries and compression methods other than STORED/DEFLATED are
+ * reported as {@link ZipException}; callers fall back to ZipFile for those.
+ *
+ * NOTE: Plain Java on purpose (no android.* imports), so it can be exercised on a desktop JVM.
+ * Keep Java 7 compatible (no lambdas). Not thread-safe; use one probe per APK and thread.
+ */
+public final class ApkZipProbe implements Closeable {
+
+    public static final String ICON_FILE_NAME = "ouya_icon.png";
+
+    private static final byte[] ICON_NAME_BYTES = ICON_FILE_NAME.getBytes(Charset.forName("US-ASCII"));
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int EOCD_LEN = 22;
+    private static final int CEN_LEN = 46;
+    private static final int LOC_LEN = 30;
+    private static final int MAX_COMMENT_LEN = 0xFFFF;
+
+    /** PNG signature followed by the length (13) and type of the mandatory first IHDR chunk. */
+    private static final byte[] PNG_HEADER = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n',
+            0, 0, 0, 13, 'I', 'H', 'D', 'R'
+    };
+    /** Signature + IHDR length/type + width + height. */
+    public static final int PNG_HEADER_CHECK_LEN = PNG_HEADER.length + 8;
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    /** A central-directory entry of interest. */
+    public static final class Entry {
+        public final String name;
+        public final int method;
+        public final long compressedSize;
+        public final long size;
+        final long localHeaderOffset;
+        long dataOffset = -1L;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long length;
+
+    private ApkZipProbe(RandomAccessFile raf) throws IOException {
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.length = channel.size();
+    }
+
+    public static ApkZipProbe open(File apk) throws IOException {
+        return new ApkZipProbe(new RandomAccessFile(apk, "r"));
+    }
+
+    /** Underlying channel, for direct transfers of STORED entries. */
+    public FileChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Find the best-matching "ouya_icon.png" entry (see {@link #densityScore(String)}), or null if
+     * the archive has none. Among equal scores the first entry in directory order wins.
+     */
+    public Entry findOuyaIcon() throws IOException {
+        ByteBuffer cen = mapCentralDirectory();
+        Entry best = null;
+        int bestScore = -1;
+
+        int pos = 0;
+        int limit = cen.limit();
+        while (pos + CEN_LEN <= limit) {
+            if (cen.getInt(pos) != CEN_SIG) {
+                throw new ZipException("Bad central directory header at " + pos);
+            }
+            int nameLen = cen.getShort(pos + 28) & 0xFFFF;
+            int extraLen = cen.getShort(pos + 30) & 0xFFFF;
+            int commentLen = cen.getShort(pos + 32) & 0xFFFF;
+            int nameStart = pos + CEN_LEN;
+            if (nameStart + nameLen > limit) {
+                throw new ZipException("Truncated central directory");
+            }
+
+            if (isIconName(cen, nameStart, nameLen)) {
+                int flags = cen.getShort(pos + 8) & 0xFFFF;
+                int method = cen.getShort(pos + 10) & 0xFFFF;
+                if ((flags & 1) != 0) throw new ZipException("Encrypted entry");
+                if (method != METHOD_STORED && method != METHOD_DEFLATED) {
+                    throw new ZipException("Unsupported compression method " + method);
+                }
+                long csize = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+                long usize = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+                long lho = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+                if (csize == 0xFFFFFFFFL || usize == 0xFFFFFFFFL || lho == 0xFFFFFFFFL) {
+                    throw new ZipException("Zip64 entry");
+                }
+
+                String name = decodeName(cen, nameStart, nameLen);
+                int score = densityScore(name.toLowerCase(Locale.US));
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = new Entry(name, method, csize, usize, lho);
+                }
+            }
+            pos = nameStart + nameLen + extraLen + commentLen;
+        }
+        return best;
+    }
+
+    /** Absolute file offset of the entry's data, resolved from its local header. */
+    public long dataOffset(Entry e) throws IOException {
+        if (e.dataOffset >= 0) return e.dataOffset;
+        ByteBuffer loc = ByteBuffer.allocate(LOC_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(loc, e.localHeaderOffset);
+        if (loc.getInt(0) != LOC_SIG) {
+            throw new ZipException("Bad local header for " + e.name);
+        }
+        int nameLen = loc.getShort(26) & 0xFFFF;
+        int extraLen = loc.getShort(28) & 0xFFFF;
+        long off = e.localHeaderOffset + LOC_LEN + nameLen + extraLen;
+        if (off + e.compressedSize > length) {
+            throw new ZipException("Entry data out of bounds: " + e.name);
+        }
+        e.dataOffset = off;
+        return off;
+    }
+
+    /** Stream of the entry's uncompressed bytes. Close it before closing the probe. */
+    public InputStream openEntry(Entry e) throws IOException {
+        long off = dataOffset(e);
+        if (e.method == METHOD_STORED) {
+            return new RangeInputStream(channel, off, e.compressedSize, false);
+        }
+        // Inflater in nowrap mode wants one dummy byte past the deflate data (same as ZipFile)
+        final Inflater inf = new Inflater(true);
+        return new InflaterInputStream(new RangeInputStream(channel, off, e.compressedSize, true), inf, 8192) {
+            private boolean closed;
+            @Override public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    /**
+     * Copy the entry to {@code dst} unchanged if it starts with a sane PNG header. Returns false
+     * (and leaves {@code dst} untouched) if it does not, so the caller can decode it instead.
+     * The file is written to a temp file first and renamed into place.
+     */
+    public boolean copyPngTo(Entry e, File dst) throws IOException {
+        if (e.method != METHOD_STORED) {
+            InputStream is = openEntry(e);
+            try {
+                return copyPngStream(is, dst);
+            } finally {
+                is.close();
+            }
+        }
+
+        long off = dataOffset(e);
+        if (e.compressedSize < PNG_HEADER_CHECK_LEN) return false;
+        ByteBuffer head = ByteBuffer.allocate(PNG_HEADER_CHECK_LEN);
+        readFully(head, off);
+        if (!isPngHeader(head.array(), PNG_HEADER_CHECK_LEN)) return false;
+
+        File tmp = new File(dst.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        boolean ok = false;
+        try {
+            FileChannel out = fos.getChannel();
+            long done = 0;
+            while (done < e.compressedSize) {
+                long n = channel.transferTo(off + done, e.compressedSize - done, out);
+                if (n <= 0) throw new EOFException("Short transfer for " + e.name);
+                done += n;
+            }
+            ok = true;
+        } finally {
+            fos.close();
+            if (!ok) tmp.delete();
+        }
+        return commit(tmp, dst);
+    }
+
+    /**
+     * Stream variant of {@link #copyPngTo(Entry, File)} for entries read through other means
+     * (e.g. the ZipFile fallback). Does not close {@code is}.
+     */
+    public static boolean copyPngStream(InputStream is, File dst) throws IOException {
+        byte[] buf = new byte[8192];
+        int head = 0;
+        while (head < PNG_HEADER_CHECK_LEN) {
+            int n = is.read(buf, head, PNG_HEADER_CHECK_LEN - head);
+            if (n < 0) return false;
+            head += n;
+        }
+        if (!isPngHeader(buf, head)) return false;
+
+        File tmp = new File(dst.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        boolean ok = false;
+        try {
+            fos.write(buf, 0, head);
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                fos.write(buf, 0, n);
+            }
+            ok = true;
+        } finally {
+            fos.close();
+            if (!ok) tmp.delete();
+        }
+        return commit(tmp, dst);
+    }
+
+    /** PNG signature, an IHDR first chunk and non-zero dimensions. */
+    public static boolean isPngHeader(byte[] b, int len) {
+        if (len < PNG_HEADER_CHECK_LEN) return false;
+        for (int i = 0; i < PNG_HEADER.length; i++) {
+            if (b[i] != PNG_HEADER[i]) return false;
+        }
+        int p = PNG_HEADER.length;
+        int width = ((b[p] & 0xFF) << 24) | ((b[p + 1] & 0xFF) << 16) | ((b[p + 2] & 0xFF) << 8) | (b[p + 3] & 0xFF);
+        int height = ((b[p + 4] & 0xFF) << 24) | ((b[p + 5] & 0xFF) << 16) | ((b[p + 6] & 0xFF) << 8) | (b[p + 7] & 0xFF);
+        return width > 0 && height > 0;
+    }
+
+    /**
+     * Density preference of an entry path (lowercase). Higher score = higher preference:
+     * xxxhdpi > xxhdpi > xhdpi > hdpi > mdpi > any.
+     */
+    public static int densityScore(String pathLower) {
+        if (pathLower.contains("xxxhdpi")) return 5;
+        if (pathLower.contains("xxhdpi"))  return 4;
+        if (pathLower.contains("xhdpi"))   return 3;
+        if (pathLower.contains("hdpi"))    return 2;
+        if (pathLower.contains("mdpi"))    return 1;
+        return 0;
+    }
+
+    // ---------- internal helpers ----------
+
+    private static boolean commit(File tmp, File dst) throws IOException {
+        if (tmp.renameTo(dst)) return true;
+        // Some filesystems refuse to rename over an existing file
+        dst.delete();
+        if (tmp.renameTo(dst)) return true;
+        tmp.delete();
+        throw new IOException("Cannot rename " + tmp + " to " + dst);
+    }
+
+    private ByteBuffer mapCentralDirectory() throws IOException {
+        if (length < EOCD_LEN) throw new ZipException("Not a zip file");
+
+        // EOCD sits at the very end, followed only by an optional comment of up to 64 KB
+        int tailLen = (int) Math.min(length, EOCD_LEN + MAX_COMMENT_LEN);
+        long tailStart = length - tailLen;
+        ByteBuffer tail = ByteBuffer.allocate(tailLen).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(tail, tailStart);
+
+        int eocd = -1;
+        for (int i = tailLen - EOCD_LEN; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) throw new ZipException("End of central directory not found");
+
+        int entries = tail.getShort(eocd + 10) & 0xFFFF;
+        long cenSize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long cenOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (entries == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOffset == 0xFFFFFFFFL) {
+            throw new ZipException("Zip64 archive");
+        }
+        if (cenOffset + cenSize > tailStart + eocd) {
+            throw new ZipException("Central directory out of bounds");
+        }
+
+        MappedByteBuffer cen = channel.map(FileChannel.MapMode.READ_ONLY, cenOffset, cenSize);
+        cen.order(ByteOrder.LITTLE_ENDIAN);
+        return cen;
+    }
+
+    /** name == "ouya_icon.png" or ends with "/ouya_icon.png", ASCII case-insensitive. */
+    private static boolean isIconName(ByteBuffer buf, int start, int len) {
+        int n = ICON_NAME_BYTES.length;
+        if (len < n) return false;
+        if (len > n && buf.get(start + len - n - 1) != '/') return false;
+        int off = start + len - n;
+        for (int i = 0; i < n; i++) {
+            int b = buf.get(off + i);
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != ICON_NAME_BYTES[i]) return false;
+        }
+        return true;
+    }
+
+    private static String decodeName(ByteBuffer buf, int start, int len) {
+        byte[] raw = new byte[len];
+        for (int i = 0; i < len; i++) raw[i] = buf.get(start + i);
+        return new String(raw, UTF8);
+    }
+
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position + dst.position());
+            if (n < 0) throw new EOFException();
+        }
+    }
+
+    /** Positional, bounded view of the channel; does not move or close the channel. */
+    private static final class RangeInputStream extends InputStream {
+        private final FileChannel ch;
+        private long pos;
+        private final long end;
+        private boolean dummyPending;
+        private final ByteBuffer one = ByteBuffer.allocate(1);
+
+        RangeInputStream(FileChannel ch, long start, long len, boolean trailingDummyByte) {
+            this.ch = ch;
+            this.pos = start;
+            this.end = start + len;
+            this.dummyPending = trailingDummyByte;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= end) {
+                if (dummyPending) {
+                    dummyPending = false;
+                    return 0;
+                }
+                return -1;
+            }
+            one.clear();
+            int n = ch.read(one, pos);
+            if (n <= 0) return -1;
+            pos++;
+            return one.get(0) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos >= end) {
+                if (dummyPending) {
+                    dummyPending = false;
+                    b[off] = 0;
+                    return 1;
+                }
+                return -1;
+            }
+            int want = (int) Math.min(len, end - pos);
+            int n = ch.read(ByteBuffer.wrap(b, off, want), pos);
+            if (n <= 0) return -1;
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - pos);
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package com.ast.ouyalaunch;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -10,20 +8,26 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
-import android.util.LruCache;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.AsyncDifferConfig;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class AppAdapter extends RecyclerView.Adapter<AppAdapter.VH> {
 
     private int selectedPosition = RecyclerView.NO_POSITION;
 
-    private LruCache<String, Bitmap> iconCache;
+    private final IconLoader iconLoader;
 
     public interface OnAppClickListener {
         void onAppLaunch(AppEntry entry);
@@ -32,26 +36,105 @@ public class AppAdapter extends RecyclerView.Adapter<AppAdapter.VH> {
     }
 
     private final Context ctx;
-    private List<AppEntry> data = new ArrayList<>();
     private final OnAppClickListener listener;
 
+    // ==== NEU: Stabile IDs + Diff im Hintergrund statt notifyDataSetChanged() ====
+
+    /**
+     * Eine App ist dieselbe Kachel, solange der Paketname gleich ist. Angezeigt werden nur Titel
+     * und Icon; Genre und Favorit ändern nur die Tab-Zugehörigkeit (→ insert/remove). Änderungen
+     * anderer Komponenten kommen als neue Objekte an (LibraryRepository.sync), daher reicht der
+     * Feldvergleich. Ein neues Icon am selben Pfad erkennt er nicht, dafür gibt es
+     * {@link #refreshIcons(Set)}.
+     */
+    private static final DiffUtil.ItemCallback<AppEntry> DIFF = new DiffUtil.ItemCallback<AppEntry>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull AppEntry a, @NonNull AppEntry b) {
+            return a.packageName != null && a.packageName.equals(b.packageName);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull AppEntry a, @NonNull AppEntry b) {
+            return a == b || (eq(a.title, b.title) && eq(a.iconPath, b.iconPath));
+        }
+    };
+
+    /** packageName → stabile Item-ID, für die Lebensdauer des Adapters. */
+    private final Map<String, Long> ids = new HashMap<>();
+
+    /** Leitet die Diff-Ergebnisse weiter und hält die gemerkte Fokus-Position auf derselben App. */
+    private final ListUpdateCallback updates = new ListUpdateCallback() {
+        @Override
+        public void onInserted(int pos, int count) {
+            if (selectedPosition != RecyclerView.NO_POSITION && pos <= selectedPosition) {
+                selectedPosition += count;
+            }
+            notifyItemRangeInserted(pos, count);
+        }
+
+        @Override
+        public void onRemoved(int pos, int count) {
+            if (selectedPosition >= pos + count) {
+                selectedPosition -= count;
+            } else if (selectedPosition >= pos) {
+                selectedPosition = RecyclerView.NO_POSITION; // fokussierte App ist weg
+            }
+            notifyItemRangeRemoved(pos, count);
+        }
+
+        @Override
+        public void onMoved(int from, int to) {
+            if (selectedPosition == from) {
+                selectedPosition = to;
+            } else if (from < selectedPosition && to >= selectedPosition) {
+                selectedPosition--;
+            } else if (from > selectedPosition && to <= selectedPosition && selectedPosition >= 0) {
+                selectedPosition++;
+            }
+            notifyItemMoved(from, to);
+        }
+
+        @Override
+        public void onChanged(int pos, int count, @Nullable Object payload) {
+            notifyItemRangeChanged(pos, count, payload);
+        }
+    };
+
+    private static boolean eq(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private final AsyncListDiffer<AppEntry> differ =
+            new AsyncListDiffer<>(updates, new AsyncDifferConfig.Builder<>(DIFF).build());
+
     public AppAdapter(Context ctx, List<AppEntry> d, OnAppClickListener listener) {
         this.ctx = ctx;
-        this.data = d;
         this.listener = listener;
+        setHasStableIds(true);
 
-        // LruCache für App-Icons
-        final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        final int cacheSize = maxMemory / 8;
-        iconCache = new LruCache<>(cacheSize);
+        // Icons werden asynchron dekodiert (LruCache im IconLoader)
+        iconLoader = new IconLoader(ctx);
+        setData(d);
     }
 
     public void setData(List<AppEntry> d) {
-        this.data = d != null ? d : new ArrayList<>();
-        if (selectedPosition >= this.data.size()) {
-            selectedPosition = RecyclerView.NO_POSITION;
-        }
-        notifyDataSetChanged();
+        setData(d, null);
+    }
+
+    /**
+     * Neuer Inhalt; der Diff gegen den aktuellen Stand läuft im Hintergrund, danach werden nur die
+     * betroffenen Kacheln benachrichtigt. {@code onCommitted} läuft (auf dem UI-Thread), sobald der
+     * neue Inhalt angezeigt wird. Die Liste wird kopiert, Aufrufer dürfen also live Sichten des
+     * LibraryRepository übergeben.
+     */
+    public void setData(List<AppEntry> d, @Nullable Runnable onCommitted) {
+        List<AppEntry> copy = d != null ? new ArrayList<>(d) : new ArrayList<>();
+        differ.submitList(copy, () -> {
+            if (selectedPosition >= getItemCount()) {
+                selectedPosition = RecyclerView.NO_POSITION;
+            }
+            if (onCommitted != null) onCommitted.run();
+        });
     }
 
     @NonNull
@@ -61,59 +144,34 @@ public class AppAdapter extends RecyclerView.Adapter<AppAdapter.VH> {
         v.setFocusable(true);
         v.setFocusableInTouchMode(true);
         v.setClickable(true);
-        return new VH(v);
-    }
+        VH h = new VH(v);
 
-    @Override
-    public void onBindViewHolder(@NonNull VH h, int pos) {
-        AppEntry e = data.get(pos);
-        h.title.setText(e.title);
-
-        // App-Icon laden (mit LruCache)
-        if (e.iconPath != null) {
-            File f = new File(e.iconPath);
-            if (f.exists()) {
-                String key = f.getAbsolutePath();
-                Bitmap bm = iconCache.get(key);
-                if (bm == null || bm.isRecycled()) {
-                    bm = BitmapFactory.decodeFile(key);
-                    if (bm != null) {
-                        iconCache.put(key, bm);
-                    }
-                }
-                if (bm != null) {
-                    h.img.setImageBitmap(bm);
-                } else {
-                    h.img.setImageBitmap(null);
-                }
-            } else {
-                h.img.setImageBitmap(null);
-            }
-        } else {
-            h.img.setImageBitmap(null);
-        }
+        // Listener einmal pro ViewHolder; der Eintrag wird beim Ereignis über die Position geholt,
+        // damit onBindViewHolder nichts allokiert
 
         // Hover/Fokus-Effekt
-        h.itemView.setOnFocusChangeListener((v, hasFocus) -> {
-            v.animate().cancel();
+        v.setOnFocusChangeListener((view, hasFocus) -> {
+            view.animate().cancel();
             if (hasFocus) {
                 selectedPosition = h.getAdapterPosition();
-                v.setBackgroundResource(R.drawable.app_hover_bg);
+                view.setBackgroundResource(R.drawable.app_hover_bg);
                 // Auf Standardgröße resetten
-                v.setScaleX(1.05f);
-                v.setScaleY(1.05f);
+                view.setScaleX(1.05f);
+                view.setScaleY(1.05f);
                 // Skalierung animieren
-                v.animate().scaleX(1.1f).scaleY(1.1f).setDuration(120).start();
+                view.animate().scaleX(1.1f).scaleY(1.1f).setDuration(120).start();
                 // Log-Ausgabe entfernt, um Navigation zu beschleunigen
             } else {
-                v.setBackgroundResource(0);
-                v.animate().scaleX(1.055f).scaleY(1.055f).setDuration(150).start();
+                view.setBackgroundResource(0);
+                view.animate().scaleX(1.055f).scaleY(1.055f).setDuration(150).start();
             }
         });
 
         // Controller-Steuerung
-        h.itemView.setOnKeyListener((v, keyCode, event) -> {
+        v.setOnKeyListener((view, keyCode, event) -> {
             if (event.getAction() == KeyEvent.ACTION_DOWN) {
+                AppEntry e = getItem(h.getAdapterPosition());
+                if (e == null) return false;
                 if (keyCode == KeyEvent.KEYCODE_BUTTON_A || keyCode == KeyEvent.KEYCODE_DPAD_CENTER) {
                     if (listener != null) listener.onAppLaunch(e);
                     return true;
@@ -129,9 +187,24 @@ public class AppAdapter extends RecyclerView.Adapter<AppAdapter.VH> {
         });
 
         // Klick mit normalem Touch
-        h.itemView.setOnClickListener(v -> {
-            if (listener != null) listener.onAppLaunch(e);
+        v.setOnClickListener(view -> {
+            AppEntry e = getItem(h.getAdapterPosition());
+            if (e != null && listener != null) listener.onAppLaunch(e);
         });
+        return h;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull VH h, int pos) {
+        AppEntry e = differ.getCurrentList().get(pos);
+        // Gleicher Titel (z.B. Rebind nach Scrollen) → TextView nicht neu layouten
+        if (h.boundTitle == null || !h.boundTitle.equals(e.title)) {
+            h.boundTitle = e.title;
+            h.title.setText(e.title);
+        }
+
+        // App-Icon: sofort aus dem Cache, sonst Platzhalter und Dekodieren im Hintergrund
+        iconLoader.bind(e, h.img);
 
         // Falls Adapter nach Datenänderung leer ist, Fokus auf erstes Element setzen
         if (pos == 0 && selectedPosition == RecyclerView.NO_POSITION) {
@@ -142,7 +215,53 @@ public class AppAdapter extends RecyclerView.Adapter<AppAdapter.VH> {
 
     @Override
     public int getItemCount() {
-        return data.size();
+        return differ.getCurrentList().size();
+    }
+
+    @Override
+    public long getItemId(int pos) {
+        String pkg = differ.getCurrentList().get(pos).packageName;
+        Long id = ids.get(pkg);
+        if (id == null) {
+            id = (long) ids.size();
+            ids.put(pkg, id);
+        }
+        return id;
+    }
+
+    /**
+     * Die Icons dieser Pakete wurden am selben Pfad neu geschrieben (App-Update): der Diff sieht
+     * das nicht, also die betroffenen Kacheln direkt neu binden. Der IconLoader löst die Quelle
+     * dabei neu auf und bekommt einen neuen Cache-Key.
+     */
+    public void refreshIcons(Set<String> packages) {
+        List<AppEntry> data = differ.getCurrentList();
+        for (int i = 0; i < data.size(); i++) {
+            if (packages.contains(data.get(i).packageName)) notifyItemChanged(i);
+        }
+    }
+
+    /** Entry at {@code pos}, or null if out of range. */
+    public AppEntry getItem(int pos) {
+        List<AppEntry> data = differ.getCurrentList();
+        return pos >= 0 && pos < data.size() ? data.get(pos) : null;
+    }
+
+    public IconLoader getIconLoader() {
+        return iconLoader;
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull VH holder) {
+        // Ausstehendes Icon gehört nicht mehr zu dieser Kachel
+        iconLoader.recycle(holder.img);
+        super.onViewRecycled(holder);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        iconLoader.cancelAll();
+        super.onDetachedFromRecyclerView(recyclerView);
     }
 
     // 🔹 Fokus-Wiederherstellung nach Scroll
@@ -167,16 +286,14 @@ public class AppAdapter extends RecyclerView.Adapter<AppAdapter.VH> {
 
     // 🔹 Aktuell fokussierte App abrufen
     public AppEntry getSelectedApp() {
-        if (selectedPosition >= 0 && selectedPosition < data.size()) {
-            return data.get(selectedPosition);
-        }
-        return null;
+        return getItem(selectedPosition);
     }
 
     // 🔹 ViewHolder
     public static class VH extends RecyclerView.ViewHolder {
         ImageView img;
         TextView title;
+        String boundTitle; // zuletzt gesetzter Titel
 
         public VH(@NonNull View v) {
             super(v);
@@ -1,13 +1,24 @@
 
 package com.ast.ouyalaunch;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public class AppEntry {
+    /** Genre ids in tab order; values of {@link #genre} (plus "Favorites" for the first tab). */
+    public static final List<String> GENRES = Collections.unmodifiableList(Arrays.asList(
+            "Favorites", "Casual", "Action", "Racing", "Simulation", "RPG", "Apps"));
+
     public String packageName;
     public String title;
-    public String genre; // one of Casual, Action & Shooter, Racing, Simulation, RPG
+    public String genre; // one of GENRES after Favorites
     public boolean favorite;
     public String iconPath; // cached icon file path
 
+    /** Collation key of {@link #title}, see LibraryRepository#TITLE_ORDER. Not persisted. */
+    transient LibraryRepository.TitleKey titleKey;
+
     public AppEntry() {}
 
     public AppEntry(String pkg, String title, String genre, boolean favorite, String iconPath) {
@@ -17,4 +28,10 @@ public class AppEntry {
         this.favorite = favorite;
         this.iconPath = iconPath;
     }
+
+    /** Copy of {@code o}, keeping its already computed sort key. */
+    public AppEntry(AppEntry o) {
+        this(o.packageName, o.title, o.genre, o.favorite, o.iconPath);
+        this.titleKey = o.titleKey;
+    }
 }
@@ -0,0 +1,73 @@
+package com.ast.ouyalaunch;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Hand-written Gson codec for {@link AppEntry}, registered by {@link DataStore}: no reflection,
+ * unknown fields are skipped, missing ones keep their defaults, and null fields are not written.
+ * Field names are those reflective Gson used, so existing apps.json files stay readable.
+ */
+final class AppEntryTypeAdapter extends TypeAdapter<AppEntry> {
+
+    @Override
+    public void write(JsonWriter out, AppEntry e) throws IOException {
+        if (e == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (e.packageName != null) out.name("packageName").value(e.packageName);
+        if (e.title != null) out.name("title").value(e.title);
+        if (e.genre != null) out.name("genre").value(e.genre);
+        out.name("favorite").value(e.favorite);
+        if (e.iconPath != null) out.name("iconPath").value(e.iconPath);
+        out.endObject();
+    }
+
+    @Override
+    public AppEntry read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        AppEntry e = new AppEntry();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            if ("packageName".equals(name)) {
+                e.packageName = in.nextString();
+            } else if ("title".equals(name)) {
+                e.title = in.nextString();
+            } else if ("genre".equals(name)) {
+                e.genre = in.nextString();
+            } else if ("favorite".equals(name)) {
+                e.favorite = readBoolean(in);
+            } else if ("iconPath".equals(name)) {
+                e.iconPath = in.nextString();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return e;
+    }
+
+    /** Accepts true/false, "true"/"false" and 0/1. */
+    private static boolean readBoolean(JsonReader in) throws IOException {
+        JsonToken t = in.peek();
+        if (t == JsonToken.BOOLEAN) return in.nextBoolean();
+        if (t == JsonToken.NUMBER) return in.nextInt() != 0;
+        if (t == JsonToken.STRING) return Boolean.parseBoolean(in.nextString());
+        in.skipValue();
+        return false;
+    }
+}
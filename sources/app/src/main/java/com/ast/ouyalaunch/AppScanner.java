@@ -3,14 +3,17 @@ package com.ast.ouyalaunch;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.CancellationSignal;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -22,7 +25,15 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 /**
@@ -31,18 +42,64 @@ import java.util.zip.ZipFile;
  * the base package (without ".launcher") is ignored for the icon scan and only the ".launcher" app
  * is considered. This avoids duplicate entries and ensures the correct OUYA icon is used.
  *
+ * Rescans are incremental: results are remembered per APK in a {@link ScanManifest}, and an APK is
+ * only opened again when its sourceDir, lastUpdateTime or size changed (or its cached icon is gone).
+ *
  * NOTE: Keep Java 7 compatible (no lambdas).
  */
 public class AppScanner {
 
     private static final String TAG = "AppScanner";
-    private static final String ICON_FILE_NAME = "ouya_icon.png";
+    private static final String ICON_FILE_NAME = ApkZipProbe.ICON_FILE_NAME;
     private static final String LAUNCHER_SUFFIX = ".launcher";
+    private static final int MAX_PARALLELISM = 4;
+
+    /**
+     * Default number of scan workers: one per core, capped so that a full rescan does not starve
+     * the UI thread on the OUYA's quad-core Tegra 3 (and similar boxes).
+     */
+    public static final int DEFAULT_PARALLELISM =
+            Math.max(1, Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Receives scan results as they are produced, before the scan as a whole has finished.
+     * Called on the scanning thread(s), possibly concurrently; implementations must hand the entry
+     * over to the UI thread themselves. Entries arrive in no particular order.
+     */
+    public interface ScanListener {
+        void onAppFound(AppEntry entry);
+    }
 
     /** Build the full list of OUYA-compatible apps (has ouya_icon.png). */
     public static List<AppEntry> buildCache(Context ctx) {
+        return buildCache(ctx, DEFAULT_PARALLELISM, null);
+    }
+
+    /**
+     * Build the full list of OUYA-compatible apps, probing up to {@code parallelism} APKs at once.
+     * A parallelism of 1 (or less) scans sequentially on the calling thread.
+     */
+    public static List<AppEntry> buildCache(Context ctx, int parallelism) {
+        return buildCache(ctx, parallelism, null);
+    }
+
+    /**
+     * Like {@link #buildCache(Context, int)}, but also publishes every entry to {@code listener} as
+     * soon as its icon is cached. The returned list contains the same AppEntry instances, sorted.
+     */
+    public static List<AppEntry> buildCache(Context ctx, int parallelism, ScanListener listener) {
+        return buildCache(ctx, parallelism, listener, null);
+    }
+
+    /**
+     * Cancellable variant: {@code cancel} is checked between packages. A cancelled scan stops
+     * early and returns what it found so far; the manifest still records the finished packages,
+     * so the next scan does not repeat them.
+     */
+    public static List<AppEntry> buildCache(Context ctx, int parallelism, final ScanListener listener,
+                                            final CancellationSignal cancel) {
         List<AppEntry> out = new ArrayList<AppEntry>();
-        PackageManager pm = ctx.getPackageManager();
+        final PackageManager pm = ctx.getPackageManager();
 
         try {
             // 1) Get all launchable activities
@@ -77,67 +134,52 @@ public class AppScanner {
             }
 
             // 4) Prepare icon cache dir
-            File iconDir = new File(ctx.getFilesDir(), "icons");
-            if (!iconDir.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                iconDir.mkdirs();
-            }
+            final IconCacheManager icons = IconCacheManager.get(ctx);
+            final IconThumbnails thumbs = IconThumbnails.forTiles(ctx);
+            final IconAtlas atlas = IconAtlas.isEnabled() ? IconAtlas.get(ctx) : null;
+
+            // 5) Load the per-APK manifest of the previous scan
+            final ScanManifest manifest = new ScanManifest(ctx);
+            manifest.load();
 
-            // 5) Iterate packages, apply soft rule, look for ouya_icon.png, and cache
+            // 6) Apply soft rule: if base is paired with ".launcher", skip base
+            List<String> toScan = new ArrayList<String>(packages.size());
             for (String pkg : packages) {
-                // Soft rule: if base is paired with ".launcher", skip base
                 if (skipBase.contains(pkg)) {
                     Log.d(TAG, "Skip base package due to .launcher twin: " + pkg);
                     continue;
                 }
+                toScan.add(pkg);
+            }
 
-                try {
-                    ApplicationInfo ai = pm.getApplicationInfo(pkg, 0);
-                    if (ai == null || ai.sourceDir == null) continue;
-
-                    // Search inside APK zip for ouya_icon.png (any density path)
-                    IconMatch match = findOuyaIconInApk(ai.sourceDir);
-                    if (match == null) {
-                        // No OUYA icon → not considered OUYA-compatible
-                        continue;
+            // 7) Look for ouya_icon.png in each remaining package and cache it
+            int workers = Math.min(parallelism, toScan.size());
+            if (workers <= 1) {
+                for (int i = 0; i < toScan.size(); i++) {
+                    if (cancel != null && cancel.isCanceled()) break;
+                    AppEntry e = scanPackage(pm, toScan.get(i), icons, thumbs, atlas, manifest);
+                    if (e != null) {
+                        out.add(e);
+                        if (listener != null) listener.onAppFound(e);
                     }
-
-                    // Decode and cache icon file
-                    InputStream is = match.open();
-                    if (is == null) continue;
-                    Bitmap bmp = BitmapFactory.decodeStream(is);
-                    is.close();
-                    if (bmp == null) continue;
-
-                    File outPng = new File(iconDir, pkg + ".png");
-                    FileOutputStream fos = new FileOutputStream(outPng);
-                    bmp.compress(Bitmap.CompressFormat.PNG, 100, fos);
-                    fos.flush();
-                    fos.close();
-
-                    // Build entry
-                    CharSequence label = pm.getApplicationLabel(ai);
-                    String title = label != null ? label.toString() : pkg;
-
-                    AppEntry e = new AppEntry();
-                    e.packageName = pkg;
-                    e.title = title;
-                    e.genre = "Casual";     // default; user can reassign, DataStore preserves
-                    e.favorite = false;
-                    e.iconPath = outPng.getAbsolutePath();
-
-                    out.add(e);
-
-                    Log.d(TAG, "Added OUYA app: " + pkg + " (" + title + "), icon=" + match.entryName);
-                } catch (Throwable perApp) {
-                    Log.w(TAG, "Failed scanning " + pkg + ": " + perApp.getMessage());
                 }
+            } else {
+                scanParallel(pm, toScan, icons, thumbs, atlas, manifest, workers, listener, cancel, out);
             }
+
+            // 8) Forget uninstalled packages and persist the manifest for the next rescan
+            manifest.retainOnly(toScan);
+            manifest.save();
+            if (atlas != null) atlas.commit();
         } catch (Throwable t) {
             Log.e(TAG, "Fehler beim App-Scan: " + t.getMessage(), t);
         }
 
-        Log.i(TAG, "Scan abgeschlossen, " + out.size() + " OUYA-kompatible Apps gefunden.");
+        if (cancel != null && cancel.isCanceled()) {
+            Log.i(TAG, "Scan abgebrochen nach " + out.size() + " OUYA-kompatiblen Apps.");
+        } else {
+            Log.i(TAG, "Scan abgeschlossen, " + out.size() + " OUYA-kompatible Apps gefunden.");
+        }
         // Sort A–Z by title
         Collections.sort(out, new Comparator<AppEntry>() {
             @Override public int compare(AppEntry a, AppEntry b) {
@@ -149,31 +191,337 @@ public class AppScanner {
         return out;
     }
 
-    /** Represents a lazy-open match inside the APK. */
+    /**
+     * Scan a single package, e.g. after a PACKAGE_ADDED/REPLACED broadcast. Applies the same rules
+     * as buildCache: the package must be launchable, and a base package is ignored while its
+     * ".launcher" twin is installed. Returns null if the package is not (or no longer)
+     * OUYA-compatible.
+     */
+    public static AppEntry scanSinglePackage(Context ctx, String pkg) {
+        ScanManifest manifest = new ScanManifest(ctx);
+        manifest.load();
+        AppEntry e = scanSinglePackage(ctx, pkg, manifest);
+        manifest.save();
+        if (IconAtlas.isEnabled()) IconAtlas.get(ctx).commit();
+        return e;
+    }
+
+    /**
+     * Batch variant of {@link #scanSinglePackage(Context, String)}: records results in the given,
+     * already loaded manifest; the caller saves it (and commits the icon atlas) once for the whole
+     * batch.
+     */
+    public static AppEntry scanSinglePackage(Context ctx, String pkg, ScanManifest manifest) {
+        if (pkg == null || pkg.length() == 0) return null;
+        PackageManager pm = ctx.getPackageManager();
+        try {
+            if (!isLaunchable(pm, pkg)) return null;
+            if (!pkg.endsWith(LAUNCHER_SUFFIX) && isLaunchable(pm, pkg + LAUNCHER_SUFFIX)) {
+                Log.d(TAG, "Skip base package due to .launcher twin: " + pkg);
+                return null;
+            }
+            IconAtlas atlas = IconAtlas.isEnabled() ? IconAtlas.get(ctx) : null;
+            return scanPackage(pm, pkg, IconCacheManager.get(ctx), IconThumbnails.forTiles(ctx), atlas, manifest);
+        } catch (Throwable t) {
+            Log.w(TAG, "Failed scanning " + pkg + ": " + t.getMessage());
+            return null;
+        }
+    }
+
+    /** Forget an uninstalled package: delete its cached icon and its manifest record. */
+    public static void forgetPackage(Context ctx, String pkg) {
+        ScanManifest manifest = new ScanManifest(ctx);
+        manifest.load();
+        forgetPackage(ctx, pkg, manifest);
+        manifest.save();
+        if (IconAtlas.isEnabled()) IconAtlas.get(ctx).commit();
+    }
+
+    /**
+     * Batch variant of {@link #forgetPackage(Context, String)}; the caller saves the manifest and
+     * commits the icon atlas.
+     */
+    public static void forgetPackage(Context ctx, String pkg, ScanManifest manifest) {
+        if (pkg == null || pkg.length() == 0) return;
+        IconCacheManager icons = IconCacheManager.get(ctx);
+        File icon = new File(icons.getIconDir(), pkg + ".png");
+        icons.delete(icon);
+        icons.delete(new File(IconThumbnails.thumbPathFor(icon.getPath())));
+        if (IconAtlas.isEnabled()) IconAtlas.get(ctx).remove(pkg);
+        manifest.remove(pkg);
+    }
+
+    /** Base package of a ".launcher" twin (e.g. "com.foo" for "com.foo.launcher"), otherwise null. */
+    public static String launcherTwinBase(String pkg) {
+        if (pkg == null || !pkg.endsWith(LAUNCHER_SUFFIX)) return null;
+        return pkg.substring(0, pkg.length() - LAUNCHER_SUFFIX.length());
+    }
+
+    private static boolean isLaunchable(PackageManager pm, String pkg) {
+        Intent intent = new Intent(Intent.ACTION_MAIN, null);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        intent.setPackage(pkg);
+        List<ResolveInfo> infos = pm.queryIntentActivities(intent, 0);
+        return infos != null && !infos.isEmpty();
+    }
+
+    /**
+     * Fan the per-package work out to a bounded pool and collect the results into {@code out}.
+     * Order does not matter here, the caller sorts by title afterwards.
+     */
+    private static void scanParallel(final PackageManager pm, List<String> packages, final IconCacheManager icons,
+                                     final IconThumbnails thumbs,
+                                     final IconAtlas atlas,
+                                     final ScanManifest manifest, int workers, final ScanListener listener,
+                                     final CancellationSignal cancel, List<AppEntry> out) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "AppScanner-" + seq.incrementAndGet());
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+        try {
+            List<Future<AppEntry>> futures = new ArrayList<Future<AppEntry>>(packages.size());
+            for (int i = 0; i < packages.size(); i++) {
+                final String pkg = packages.get(i);
+                futures.add(pool.submit(new Callable<AppEntry>() {
+                    @Override public AppEntry call() {
+                        if (cancel != null && cancel.isCanceled()) return null;
+                        AppEntry e = scanPackage(pm, pkg, icons, thumbs, atlas, manifest);
+                        if (e != null && listener != null) listener.onAppFound(e);
+                        return e;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    AppEntry e = futures.get(i).get();
+                    if (e != null) out.add(e);
+                } catch (ExecutionException ee) {
+                    Log.w(TAG, "Failed scanning " + packages.get(i) + ": " + ee.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Probe a single package for ouya_icon.png and cache the icon. Returns null if the package is
+     * not OUYA-compatible or could not be read.
+     *
+     * Reads the package's {@code manifest} record, and unless its fingerprint still matches, the
+     * APK (through {@link ApkZipProbe}, or ZipFile for archives the probe rejects). Writes
+     * icons/&lt;pkg&gt;.png and icons/&lt;pkg&gt;.thumb (a tile-sized thumbnail, created if missing
+     * or older than the icon), the package's slot in {@code atlas} (if non-null, when missing or
+     * stale) and its manifest record, and reports written files to {@code icons}. Safe to call
+     * from several threads at once for different packages: the per-package files are only written
+     * here, and the shared manifest, atlas and IconCacheManager index are thread-safe.
+     */
+    private static AppEntry scanPackage(PackageManager pm, String pkg, IconCacheManager icons,
+                                        IconThumbnails thumbs, IconAtlas atlas, ScanManifest manifest) {
+        try {
+            PackageInfo pi = pm.getPackageInfo(pkg, 0);
+            ApplicationInfo ai = pi != null ? pi.applicationInfo : null;
+            if (ai == null) ai = pm.getApplicationInfo(pkg, 0);
+            if (ai == null || ai.sourceDir == null) return null;
+
+            long lastUpdate = pi != null ? pi.lastUpdateTime : 0L;
+            long apkSize = new File(ai.sourceDir).length();
+            File outPng = new File(icons.getIconDir(), pkg + ".png");
+
+            // Unchanged since the last scan → reuse the cached result and icon file
+            ScanManifest.Record known = manifest.get(pkg);
+            if (known != null && known.matches(ai.sourceDir, lastUpdate, apkSize)) {
+                if (known.iconEntry == null) return null;
+                String title = known.title != null ? known.title : pkg;
+                if (icons.exists(outPng)) {
+                    packThumbnail(atlas, pkg, cacheThumbnail(icons, thumbs, outPng));
+                    return newEntry(pkg, title, outPng);
+                }
+                // Full icon dropped by the cache budget: the thumbnail alone is enough for the grid
+                File thumb = new File(IconThumbnails.thumbPathFor(outPng.getPath()));
+                boolean hasThumb = icons.exists(thumb);
+                if (hasThumb || (atlas != null && atlas.contains(pkg))) {
+                    if (hasThumb) packThumbnail(atlas, pkg, thumb);
+                    return newEntry(pkg, title, outPng);
+                }
+            }
+
+            // Search inside APK zip for ouya_icon.png (any density path)
+            IconMatch match = findOuyaIconInApk(ai.sourceDir);
+            if (match == null) {
+                // No OUYA icon → not considered OUYA-compatible
+                manifest.put(pkg, new ScanManifest.Record(ai.sourceDir, lastUpdate, apkSize, null, null));
+                return null;
+            }
+
+            // Cache icon file: copy valid PNGs byte for byte, decode/re-encode only broken ones
+            boolean cached;
+            try {
+                cached = match.copyPngTo(outPng) || decodeAndCache(match, outPng);
+            } finally {
+                match.close();
+            }
+            if (!cached) return null;
+            icons.onWritten(outPng);
+            packThumbnail(atlas, pkg, cacheThumbnail(icons, thumbs, outPng));
+
+            // Build entry
+            CharSequence label = pm.getApplicationLabel(ai);
+            String title = label != null ? label.toString() : pkg;
+
+            manifest.put(pkg, new ScanManifest.Record(ai.sourceDir, lastUpdate, apkSize, match.entryName, title));
+
+            Log.d(TAG, "Added OUYA app: " + pkg + " (" + title + "), icon=" + match.entryName);
+            return newEntry(pkg, title, outPng);
+        } catch (Throwable perApp) {
+            Log.w(TAG, "Failed scanning " + pkg + ": " + perApp.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Slow path for icons that are not a plain PNG: let BitmapFactory make sense of them and write
+     * a clean PNG.
+     */
+    private static boolean decodeAndCache(IconMatch match, File outPng) throws IOException {
+        InputStream is = match.open();
+        if (is == null) return false;
+        Bitmap bmp;
+        try {
+            bmp = BitmapFactory.decodeStream(is);
+        } finally {
+            is.close();
+        }
+        if (bmp == null) return false;
+
+        Log.d(TAG, "Re-encoding icon " + match.entryName + " of " + match.apkPath);
+        FileOutputStream fos = new FileOutputStream(outPng);
+        try {
+            bmp.compress(Bitmap.CompressFormat.PNG, 100, fos);
+            fos.flush();
+        } finally {
+            fos.close();
+        }
+        return true;
+    }
+
+    private static File cacheThumbnail(IconCacheManager icons, IconThumbnails thumbs, File icon) {
+        File thumb = thumbs.ensure(icon);
+        if (thumb != null) icons.onWritten(thumb);
+        return thumb;
+    }
+
+    private static void packThumbnail(IconAtlas atlas, String pkg, File thumb) {
+        if (atlas == null || thumb == null) return;
+        if (!atlas.isCurrent(pkg, thumb)) atlas.put(pkg, thumb);
+    }
+
+    private static AppEntry newEntry(String pkg, String title, File iconFile) {
+        AppEntry e = new AppEntry();
+        e.packageName = pkg;
+        e.title = title;
+        e.genre = "Casual";     // default; user can reassign, DataStore preserves
+        e.favorite = false;
+        e.iconPath = iconFile.getAbsolutePath();
+        return e;
+    }
+
+    /**
+     * Represents a match inside the APK. When found by {@link ApkZipProbe} the APK stays open until
+     * {@link #close()}, so the entry is read without reopening the file; the ZipFile fallback
+     * opens the archive on first use and keeps it open until then as well.
+     */
     private static class IconMatch {
         final String apkPath;
         final String entryName;
-        IconMatch(String apkPath, String entryName) { this.apkPath = apkPath; this.entryName = entryName; }
+        private final ApkZipProbe probe;
+        private final ApkZipProbe.Entry entry;
+        private ZipFile zf;
+
+        IconMatch(String apkPath, String entryName) {
+            this(apkPath, entryName, null, null);
+        }
+
+        IconMatch(String apkPath, ApkZipProbe probe, ApkZipProbe.Entry entry) {
+            this(apkPath, entry.name, probe, entry);
+        }
+
+        private IconMatch(String apkPath, String entryName, ApkZipProbe probe, ApkZipProbe.Entry entry) {
+            this.apkPath = apkPath;
+            this.entryName = entryName;
+            this.probe = probe;
+            this.entry = entry;
+        }
+
         InputStream open() {
             try {
-                ZipFile zf = new ZipFile(apkPath);
+                if (probe != null) return probe.openEntry(entry);
+                if (zf == null) zf = new ZipFile(apkPath); // reused by a second open() (decode fallback)
                 ZipEntry ze = zf.getEntry(entryName);
                 if (ze == null) return null;
-                // NOTE: The caller decodes & closes the stream; we keep ZipFile referenced
-                // until stream is closed by framework.
                 return zf.getInputStream(ze);
             } catch (Throwable t) {
                 Log.w(TAG, "open() failed for " + entryName + " in " + apkPath + ": " + t.getMessage());
                 return null;
             }
         }
+
+        /** Write the entry to {@code dst} unchanged if it is a valid PNG; false otherwise. */
+        boolean copyPngTo(File dst) {
+            try {
+                if (probe != null) return probe.copyPngTo(entry, dst);
+                InputStream is = open();
+                if (is == null) return false;
+                try {
+                    return ApkZipProbe.copyPngStream(is, dst);
+                } finally {
+                    is.close();
+                }
+            } catch (Throwable t) {
+                Log.w(TAG, "copyPngTo() failed for " + entryName + " in " + apkPath + ": " + t.getMessage());
+                return false;
+            }
+        }
+
+        void close() {
+            try { if (probe != null) probe.close(); } catch (Throwable ignore) {}
+            try { if (zf != null) zf.close(); } catch (Throwable ignore) {}
+            zf = null;
+        }
     }
 
     /**
      * Find the best-matching "ouya_icon.png" entry within the given APK zip path.
      * Preference order: xxxhdpi > xxhdpi > xhdpi > hdpi > mdpi > any.
+     *
+     * Uses the single-pass central directory probe; archives it cannot handle (Zip64, unusual
+     * compression) go through the ZipFile based scan instead. The caller must close() the match.
      */
-    private static IconMatch findOuyaIconInApk(String apkPath) {
+    static IconMatch findOuyaIconInApk(String apkPath) {
+        ApkZipProbe probe = null;
+        try {
+            probe = ApkZipProbe.open(new File(apkPath));
+            ApkZipProbe.Entry e = probe.findOuyaIcon();
+            if (e == null) {
+                probe.close();
+                return null;
+            }
+            return new IconMatch(apkPath, probe, e);
+        } catch (ZipException unsupported) {
+            try { if (probe != null) probe.close(); } catch (Throwable ignore) {}
+            Log.d(TAG, "Probe fallback for " + apkPath + ": " + unsupported.getMessage());
+            return findOuyaIconInApkZipFile(apkPath);
+        } catch (Throwable t) {
+            try { if (probe != null) probe.close(); } catch (Throwable ignore) {}
+            return null;
+        }
+    }
+
+    private static IconMatch findOuyaIconInApkZipFile(String apkPath) {
         ZipFile zf = null;
         try {
             zf = new ZipFile(apkPath);
@@ -214,13 +562,7 @@ public class AppScanner {
         }
     }
 
-    private static int densityScore(String pathLower) {
-        // Higher score = higher preference
-        if (pathLower.contains("xxxhdpi")) return 5;
-        if (pathLower.contains("xxhdpi"))  return 4;
-        if (pathLower.contains("xhdpi"))   return 3;
-        if (pathLower.contains("hdpi"))    return 2;
-        if (pathLower.contains("mdpi"))    return 1;
-        return 0;
+    static int densityScore(String pathLower) {
+        return ApkZipProbe.densityScore(pathLower);
     }
 }
@@ -1,69 +1,839 @@
-
 package com.ast.ouyalaunch;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.lang.reflect.Type;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Persists the library as apps.json: {@code {"version": N, "apps": [...]}} (a bare array, as
+ * written by older versions, is read as version 0).
+ *
+ * Changes are committed optimistically against the {@link Stamp} the caller loaded
+ * ({@link #loadVersioned()}): the writer builds the new content, writes it to a temp file, and only
+ * for the final check-and-rename takes a short FileChannel lock on apps.lock. If apps.json (or the
+ * journal) is no longer at the expected stamp, the commit is not published; the delta is rebased
+ * onto the newer content and retried, and after {@link #MAX_COMMIT_ATTEMPTS} the commit fails.
+ * Changes are committed as deltas ({@link #commit(Stamp, Collection, Collection)},
+ * {@link #saveOne(AppEntry)}). {@link #save(List, boolean, Stamp, Collection)} replaces the whole
+ * library only if nothing was committed since the caller loaded; otherwise it commits the
+ * difference to what the caller loaded, as a delta.
+ *
+ * In journaled mode (the default) deltas do not rewrite apps.json: they are appended to
+ * apps.journal (under the same file lock), stamped with the apps.json version they apply to.
+ * {@link #load()} replays the journal records of the current version over the snapshot, and once
+ * the journal passes {@link #JOURNAL_COMPACT_BYTES} it is folded into a new version.
+ *
+ * In write-behind mode save/commit/saveOne only queue the change and return; one background writer
+ * persists the queue after {@link #WRITE_DELAY_MS} of quiet (at most {@link #WRITE_MAX_DELAY_MS}
+ * after the first change), so a burst of edits costs one write. The queue is process-wide:
+ * {@link #load()} on any instance already sees queued changes. Call {@link #flush()} from
+ * onPause/onStop.
+ *
+ * Every snapshot is also written as {@link LibrarySnapshot} (library.bin, if enabled), so that
+ * {@link #loadTab(String)} can hand the first tab to a cold-starting UI without parsing apps.json.
+ *
+ * All file access is serialized process-wide, DataStore instances are cheap and short-lived.
+ */
 public class DataStore {
+    private static final String TAG = "DataStore";
     private static final String FILE = "apps.json";
+    private static final String JOURNAL = "apps.journal";
+    private static final String BINARY = "library.bin";
+    private static final String LOCK_FILE = "apps.lock";
     private static final String FLAG = "cache.flag";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final long JOURNAL_COMPACT_BYTES = 32 * 1024;
+    static final long WRITE_DELAY_MS = 300;
+    static final long WRITE_MAX_DELAY_MS = 1500;
+    /** After this many lost races a commit fails. */
+    static final int MAX_COMMIT_ATTEMPTS = 5;
+
+    /** Guards the files within this process. Taken before QUEUE when both are needed. */
+    private static final Object LOCK = new Object();
+
+    private static final AppEntryTypeAdapter ENTRY_ADAPTER = new AppEntryTypeAdapter();
+
+    // ==== Write-behind queue (process-wide), guarded by QUEUE ====
+    private static final Object QUEUE = new Object();
+    private static List<AppEntry> pendingSnapshot;
+    /** What the queued snapshot replaces: see {@link #save(List, boolean, Stamp, Collection)}. */
+    private static Stamp pendingBase;
+    private static Collection<AppEntry> pendingBaseApps;
+    private static boolean pendingFlag;
+    private static final Map<String, AppEntry> pendingPuts = new LinkedHashMap<String, AppEntry>();
+    private static final Set<String> pendingRemoved = new LinkedHashSet<String>();
+    private static long firstPendingAt = -1L;
+    private static DataStore pendingWriter;
+    private static Handler writerHandler;
+
+    private static final Runnable WRITE_PENDING = new Runnable() {
+        @Override public void run() {
+            DataStore target;
+            synchronized (QUEUE) {
+                target = pendingWriter;
+            }
+            if (target != null) target.writePending();
+        }
+    };
+
+    /** One line of apps.journal. */
+    private static final class JournalRecord {
+        static final String OP_PUT = "put";
+        static final String OP_REMOVE = "remove";
+
+        String op;
+        AppEntry app;
+        /** apps.json version the record was appended to; null in journals of older releases. */
+        Long base;
+
+        JournalRecord(String op, AppEntry app, long base) {
+            this.op = op;
+            this.app = app;
+            this.base = base;
+        }
+    }
+
+    /**
+     * Identifies what is on disk: the apps.json version and the journal length. Opaque to callers,
+     * who hand the stamp they loaded at back to a commit.
+     */
+    public static final class Stamp {
+        final long version;
+        final long journalLength;
+
+        Stamp(long version, long journalLength) {
+            this.version = version;
+            this.journalLength = journalLength;
+        }
+
+        boolean same(Stamp o) {
+            return o != null && version == o.version && journalLength == o.journalLength;
+        }
+
+        @Override public String toString() {
+            return version + "+" + journalLength;
+        }
+    }
+
+    /** The library together with the stamp it was read at. */
+    public static final class Versioned {
+        public final List<AppEntry> apps;
+        public final Stamp stamp;
+        /** False if apps.json exists but could not be read: {@link #apps} may miss apps. */
+        public final boolean complete;
+
+        Versioned(List<AppEntry> apps, Stamp stamp, boolean complete) {
+            this.apps = apps;
+            this.stamp = stamp;
+            this.complete = complete;
+        }
+    }
 
     private final Context ctx;
-    private final Gson gson = new Gson();
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(AppEntry.class, ENTRY_ADAPTER)
+            .create();
+    private final boolean journaled;
+    private final boolean writeBehind;
+    /** Whether the last {@link #readSnapshot()} failed on an existing file. Guarded by LOCK. */
+    private boolean snapshotReadFailed;
 
     public DataStore(Context ctx) {
+        this(ctx, true, false);
+    }
+
+    public DataStore(Context ctx, boolean journaled) {
+        this(ctx, journaled, false);
+    }
+
+    public DataStore(Context ctx, boolean journaled, boolean writeBehind) {
         this.ctx = ctx.getApplicationContext();
+        this.journaled = journaled;
+        this.writeBehind = writeBehind;
     }
 
     public boolean isCacheBuilt() {
         return new File(ctx.getFilesDir(), FLAG).exists();
     }
 
-    public void save(List<AppEntry> list, boolean setFlag) {
-        try {
-            File f = new File(ctx.getFilesDir(), FILE);
-            BufferedWriter bw = new BufferedWriter(new FileWriter(f));
-            bw.write(gson.toJson(list));
-            bw.close();
-            if (setFlag) new File(ctx.getFilesDir(), FLAG).createNewFile();
-        } catch (Exception ignored) {}
+    /**
+     * Replace the whole library with {@code list} (e.g. after a full scan). {@code base} and
+     * {@code baseApps} are what the caller loaded ({@link #loadVersioned()}): if something was
+     * committed since, {@code list} is not written as a whole; its difference to {@code baseApps}
+     * is committed as a delta instead, so the other commit is kept. Without a base (null) the list
+     * replaces whatever is on disk. Returns false if the change could not be persisted.
+     */
+    public boolean save(List<AppEntry> list, boolean setFlag, Stamp base, Collection<AppEntry> baseApps) {
+        if (writeBehind) {
+            synchronized (QUEUE) {
+                if (pendingSnapshot == null) {
+                    // A snapshot still queued keeps its (older) base: the new list contains its changes
+                    pendingBase = base;
+                    pendingBaseApps = baseApps;
+                }
+                pendingSnapshot = copyOf(list);
+                pendingFlag |= setFlag;
+                // Queued single-entry changes stay and are applied on top, as on the synchronous
+                // path: the list may have been loaded before them
+                schedule();
+            }
+            return true;
+        }
+        synchronized (LOCK) {
+            // This list is newer than any queued snapshot (it was loaded with the queue applied);
+            // queued single-entry changes are kept and written on top later.
+            synchronized (QUEUE) {
+                if (pendingSnapshot != null && baseApps != null) {
+                    base = pendingBase; // our list contains the queued one, diff against its base
+                    baseApps = pendingBaseApps;
+                }
+                pendingSnapshot = null;
+                pendingBase = null;
+                pendingBaseApps = null;
+            }
+            try {
+                commitSnapshot(base, list, baseApps, Collections.<AppEntry>emptyList(), Collections.<String>emptyList());
+                if (setFlag) new File(ctx.getFilesDir(), FLAG).createNewFile();
+                return true;
+            } catch (Exception e) {
+                Log.w(TAG, "save failed: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    public boolean saveOne(AppEntry entry) {
+        return commit(null, Collections.singletonList(entry), Collections.<String>emptyList());
     }
 
-    public void saveOne(AppEntry entry) {
-        List<AppEntry> all = load();
-        boolean found = false;
-        for (int i=0;i<all.size();i++) {
-            if (all.get(i).packageName.equals(entry.packageName)) {
-                all.set(i, entry); found = true; break;
+    /**
+     * Commit a change: {@code puts} are added or replace the entry with the same package,
+     * {@code removed} packages are dropped. {@code base} is the stamp the caller loaded at (null
+     * if unknown); if other commits came in since, the delta is rebased onto them, so concurrent
+     * changes to other packages are kept. Returns false if the change could not be persisted.
+     */
+    public boolean commit(Stamp base, Collection<AppEntry> puts, Collection<String> removed) {
+        if (puts.isEmpty() && removed.isEmpty()) return true;
+        if (writeBehind) {
+            synchronized (QUEUE) {
+                for (String pkg : removed) {
+                    pendingPuts.remove(pkg);
+                    pendingRemoved.add(pkg);
+                }
+                for (AppEntry e : puts) {
+                    pendingRemoved.remove(e.packageName);
+                    pendingPuts.remove(e.packageName);
+                    pendingPuts.put(e.packageName, copyOf(e));
+                }
+                schedule();
+            }
+            return true;
+        }
+        synchronized (LOCK) {
+            try {
+                writeDelta(base, puts, removed);
+                return true;
+            } catch (Exception e) {
+                Log.w(TAG, "commit failed: " + e.getMessage());
+                return false;
             }
         }
-        if (!found) all.add(entry);
-        save(all, true);
     }
 
     public List<AppEntry> load() {
+        return loadVersioned().apps;
+    }
+
+    /**
+     * The library plus the stamp of the files it was read from; pass the stamp to
+     * {@link #commit(Stamp, Collection, Collection)}/{@link #save(List, boolean, Stamp, Collection)}.
+     * Queued write-behind changes are included (they are committed as deltas on top).
+     */
+    public Versioned loadVersioned() {
+        synchronized (LOCK) {
+            Stamp stamp = readStamp();
+            List<AppEntry> list = null;
+            synchronized (QUEUE) {
+                if (pendingSnapshot != null) list = copyOf(pendingSnapshot);
+            }
+            boolean complete = true;
+            if (list == null) {
+                list = loadFromDisk();
+                complete = !snapshotReadFailed;
+            }
+            synchronized (QUEUE) {
+                applyDelta(list, copyOf(pendingPuts.values()), pendingRemoved);
+            }
+            return new Versioned(list, stamp, complete);
+        }
+    }
+
+    /**
+     * Fast path for a cold start: the apps of one launcher tab, read from library.bin plus the
+     * journal and queued changes. Returns null when there is no usable binary snapshot (disabled,
+     * missing, not of the current apps.json version, or damaged, which deletes it); use
+     * {@link #load()} then.
+     */
+    public List<AppEntry> loadTab(String tab) {
+        if (!LibrarySnapshot.isEnabled()) return null;
+        synchronized (LOCK) {
+            Map<String, AppEntry> queued = new LinkedHashMap<String, AppEntry>();
+            synchronized (QUEUE) {
+                if (pendingSnapshot != null) return null;
+                for (String pkg : pendingRemoved) queued.put(pkg, null);
+                for (AppEntry e : pendingPuts.values()) queued.put(e.packageName, copyOf(e));
+            }
+            File bin = new File(ctx.getFilesDir(), BINARY);
+            List<AppEntry> list;
+            try {
+                LibrarySnapshot snap = LibrarySnapshot.open(bin);
+                if (snap == null || !snap.matches(readVersion())) return null;
+                list = snap.tab(tab);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Discarding " + BINARY + ": " + e.getMessage());
+                //noinspection ResultOfMethodCallIgnored
+                bin.delete();
+                return null;
+            }
+            if (list == null) return null;
+
+            Map<String, AppEntry> changes = readJournal();
+            for (Map.Entry<String, AppEntry> q : queued.entrySet()) {
+                changes.remove(q.getKey()); // queued changes are newer than the journal
+                changes.put(q.getKey(), q.getValue());
+            }
+            if (!changes.isEmpty()) patchTab(list, tab, changes);
+            return list;
+        }
+    }
+
+    /** Write all queued changes now, on the calling thread. */
+    public void flush() {
+        Handler h;
+        synchronized (QUEUE) {
+            h = writerHandler;
+        }
+        if (h != null) h.removeCallbacks(WRITE_PENDING);
+        writePending();
+    }
+
+    /** Fold the journal into a new apps.json version. */
+    public void compact() {
+        synchronized (LOCK) {
+            File journal = new File(ctx.getFilesDir(), JOURNAL);
+            if (!journal.exists()) return;
+            try {
+                commitSnapshot(null, null, null, Collections.<AppEntry>emptyList(), Collections.<String>emptyList());
+                Log.i(TAG, "Compacted journal into snapshot");
+            } catch (Exception e) {
+                Log.w(TAG, "compaction failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Version of apps.json on disk (0 for none or a legacy file). */
+    public long version() {
+        synchronized (LOCK) {
+            return readVersion();
+        }
+    }
+
+    // ---------- internal helpers ----------
+
+    /** Caller holds QUEUE. */
+    private void schedule() {
+        pendingWriter = this;
+        if (writerHandler == null) {
+            HandlerThread t = new HandlerThread("DataStoreWriter", Process.THREAD_PRIORITY_BACKGROUND);
+            t.start();
+            writerHandler = new Handler(t.getLooper());
+        }
+        long now = SystemClock.uptimeMillis();
+        if (firstPendingAt < 0) firstPendingAt = now;
+        long delay = Math.min(WRITE_DELAY_MS, Math.max(0L, firstPendingAt + WRITE_MAX_DELAY_MS - now));
+        writerHandler.removeCallbacks(WRITE_PENDING);
+        writerHandler.postDelayed(WRITE_PENDING, delay);
+    }
+
+    /**
+     * Take the queue and write it. LOCK is held across take and write, so a concurrent load()
+     * either still sees the queued changes or already finds them on disk.
+     */
+    private void writePending() {
+        synchronized (LOCK) {
+            List<AppEntry> snapshot;
+            Stamp base;
+            Collection<AppEntry> baseApps;
+            boolean flag;
+            List<AppEntry> puts;
+            List<String> removed;
+            synchronized (QUEUE) {
+                snapshot = pendingSnapshot;
+                base = pendingBase;
+                baseApps = pendingBaseApps;
+                flag = pendingFlag;
+                puts = new ArrayList<AppEntry>(pendingPuts.values());
+                removed = new ArrayList<String>(pendingRemoved);
+                pendingSnapshot = null;
+                pendingBase = null;
+                pendingBaseApps = null;
+                pendingFlag = false;
+                pendingPuts.clear();
+                pendingRemoved.clear();
+                firstPendingAt = -1L;
+            }
+            if (snapshot == null && puts.isEmpty() && removed.isEmpty()) return;
+
+            try {
+                if (snapshot != null) {
+                    List<AppEntry> next = new ArrayList<AppEntry>(snapshot);
+                    applyDelta(next, puts, removed);
+                    commitSnapshot(base, next, baseApps, Collections.<AppEntry>emptyList(), Collections.<String>emptyList());
+                    if (flag) new File(ctx.getFilesDir(), FLAG).createNewFile();
+                } else {
+                    writeDelta(null, puts, removed);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "write-behind failed, keeping changes queued: " + e.getMessage());
+                synchronized (QUEUE) {
+                    // Changes queued in the meantime are newer and win
+                    if (pendingSnapshot == null && snapshot != null) {
+                        pendingSnapshot = snapshot;
+                        pendingBase = base;
+                        pendingBaseApps = baseApps;
+                        pendingFlag |= flag;
+                    } else if (snapshot != null) {
+                        pendingBase = base; // the newer snapshot contains ours: keep the older base
+                        pendingBaseApps = baseApps;
+                    }
+                    for (AppEntry p : puts) {
+                        if (!pendingPuts.containsKey(p.packageName) && !pendingRemoved.contains(p.packageName)) {
+                            pendingPuts.put(p.packageName, p);
+                        }
+                    }
+                    for (String pkg : removed) {
+                        if (!pendingPuts.containsKey(pkg)) pendingRemoved.add(pkg);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Persist a delta: journal records, or a rebased snapshot when not journaled. Journal records
+     * are replayed over whatever is on disk, so an append needs no rebase. Caller holds LOCK.
+     */
+    private void writeDelta(Stamp base, Collection<AppEntry> puts, Collection<String> removed) throws Exception {
+        if (journaled) {
+            try {
+                appendJournal(puts, removed);
+                new File(ctx.getFilesDir(), FLAG).createNewFile();
+                if (new File(ctx.getFilesDir(), JOURNAL).length() >= JOURNAL_COMPACT_BYTES) {
+                    compact();
+                }
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "journal append failed, writing snapshot: " + e.getMessage());
+            }
+        }
+        commitSnapshot(base, null, null, puts, removed);
+        new File(ctx.getFilesDir(), FLAG).createNewFile();
+    }
+
+    /** Append journal records; under the file lock, so it cannot interleave with a commit. */
+    private void appendJournal(Collection<AppEntry> puts, Collection<String> removed) throws IOException {
+        FileLock lock = lockFiles();
+        try {
+            // Stamped with the version they apply to, read under the lock publish() takes as well
+            long base = readVersion();
+            StringBuilder sb = new StringBuilder();
+            for (String pkg : removed) {
+                AppEntry gone = new AppEntry(pkg, null, null, false, null);
+                sb.append(gson.toJson(new JournalRecord(JournalRecord.OP_REMOVE, gone, base))).append('\n');
+            }
+            for (AppEntry p : puts) {
+                sb.append(gson.toJson(new JournalRecord(JournalRecord.OP_PUT, p, base))).append('\n');
+            }
+            byte[] bytes = sb.toString().getBytes(UTF8);
+
+            FileOutputStream fos = new FileOutputStream(new File(ctx.getFilesDir(), JOURNAL), true);
+            try {
+                fos.write(bytes);
+            } finally {
+                fos.close();
+            }
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Optimistic commit of a new apps.json version, expected to be based on {@code base} (null:
+     * whatever is current). With {@code replace} set, that list becomes the library; otherwise
+     * {@code puts}/{@code removed} are applied to the current content.
+     *
+     * If the files are not at the expected stamp, a delta is rebased: re-read, re-applied and
+     * retried. A stale {@code replace} is never written as a whole; it is turned into the delta
+     * against {@code replaceBase} (what the caller loaded) and rebased like any other. A replace
+     * without {@code replaceBase} is unconditional. After {@link #MAX_COMMIT_ATTEMPTS} lost races
+     * the commit fails with an IOException. On success library.bin is rewritten. Caller holds
+     * LOCK.
+     */
+    private void commitSnapshot(Stamp base, List<AppEntry> replace, Collection<AppEntry> replaceBase,
+                                Collection<AppEntry> puts, Collection<String> removed) throws Exception {
+        File tmp = new File(ctx.getFilesDir(), FILE + ".tmp");
+        Stamp expected = base;
+        for (int attempt = 1; attempt <= MAX_COMMIT_ATTEMPTS; attempt++) {
+            Stamp current = readStamp();
+            boolean stale = expected != null ? !current.same(expected) : replaceBase != null && attempt == 1;
+            if (stale && replace != null && replaceBase != null) {
+                // Someone committed since the caller loaded: keep their changes, commit ours as a delta
+                List<String> gone = new ArrayList<String>();
+                puts = diff(replaceBase, replace, gone);
+                removed = gone;
+                replace = null;
+            }
+            if (stale) {
+                Log.i(TAG, FILE + " is at " + current + ", not " + expected + ": rebasing (attempt " + attempt + ")");
+            }
+            expected = current;
+
+            List<AppEntry> next;
+            if (replace != null) {
+                next = replace;
+            } else {
+                next = loadFromDisk();
+                applyDelta(next, puts, removed);
+            }
+            writeTemp(tmp, next, current.version + 1);
+            if (publish(tmp, current)) {
+                writeBinary(next, current.version + 1);
+                return;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+        throw new IOException(FILE + " kept changing, giving up after " + MAX_COMMIT_ATTEMPTS + " attempts");
+    }
+
+    private void writeTemp(File tmp, List<AppEntry> list, long version) throws IOException {
+        // Streamed entry by entry, the document never exists as one String
+        JsonWriter w = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8)));
+        try {
+            w.beginObject();
+            w.name("version").value(version); // first, so readVersion() can stop early
+            w.name("apps").beginArray();
+            for (int i = 0; i < list.size(); i++) {
+                ENTRY_ADAPTER.write(w, list.get(i));
+            }
+            w.endArray();
+            w.endObject();
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Under the file lock: unless something was committed since {@code base}, rename {@code tmp}
+     * to apps.json and drop the journal, which the new version already contains. The old
+     * library.bin goes first: it must never be paired with a newer apps.json. A journal that
+     * survives a crash right after the rename is not replayed, its records carry the old version.
+     */
+    private boolean publish(File tmp, Stamp base) throws Exception {
+        File f = new File(ctx.getFilesDir(), FILE);
+        File bin = new File(ctx.getFilesDir(), BINARY);
+        File journal = new File(ctx.getFilesDir(), JOURNAL);
+        FileLock lock = lockFiles();
+        try {
+            if (!readStamp().same(base)) return false;
+            if (bin.exists() && !bin.delete()) Log.w(TAG, "Could not delete " + bin);
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                if (!tmp.renameTo(f)) throw new Exception("Cannot replace " + f);
+            }
+            if (journal.exists() && !journal.delete()) {
+                Log.w(TAG, "Could not delete " + journal);
+            }
+            return true;
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    private void writeBinary(List<AppEntry> list, long version) {
+        if (!LibrarySnapshot.isEnabled()) return;
+        File bin = new File(ctx.getFilesDir(), BINARY);
+        try {
+            LibrarySnapshot.write(bin, list, AppEntry.GENRES, version);
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot write " + BINARY + ": " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            bin.delete();
+        }
+    }
+
+    /** Exclusive lock on apps.lock; held only around a rename or a journal append. */
+    private FileLock lockFiles() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(ctx.getFilesDir(), LOCK_FILE), "rw");
+        try {
+            return raf.getChannel().lock();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static void unlock(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException ignore) {
+        }
+        try {
+            lock.channel().close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private Stamp readStamp() {
+        return new Stamp(readVersion(), new File(ctx.getFilesDir(), JOURNAL).length());
+    }
+
+    /** The "version" of apps.json, reading no further than needed; 0 for none or a legacy array. */
+    private long readVersion() {
+        File f = new File(ctx.getFilesDir(), FILE);
+        if (!f.exists()) return 0;
+        try {
+            JsonReader r = new JsonReader(new InputStreamReader(new FileInputStream(f), UTF8));
+            try {
+                if (r.peek() != JsonToken.BEGIN_OBJECT) return 0;
+                r.beginObject();
+                while (r.hasNext()) {
+                    if ("version".equals(r.nextName())) return r.nextLong();
+                    r.skipValue();
+                }
+                return 0;
+            } finally {
+                r.close();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot read version of " + FILE + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /** Snapshot plus journal, without the write-behind queue. Caller holds LOCK. */
+    private List<AppEntry> loadFromDisk() {
+        List<AppEntry> list = readSnapshot();
+        Map<String, AppEntry> journal = readJournal();
+        if (!journal.isEmpty()) {
+            List<AppEntry> puts = new ArrayList<AppEntry>();
+            List<String> removed = new ArrayList<String>();
+            for (Map.Entry<String, AppEntry> e : journal.entrySet()) {
+                if (e.getValue() != null) {
+                    puts.add(e.getValue());
+                } else {
+                    removed.add(e.getKey());
+                }
+            }
+            applyDelta(list, puts, removed);
+        }
+        return list;
+    }
+
+    private List<AppEntry> readSnapshot() {
+        snapshotReadFailed = false;
         try {
             File f = new File(ctx.getFilesDir(), FILE);
             if (!f.exists()) return new ArrayList<>();
-            BufferedReader br = new BufferedReader(new FileReader(f));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) sb.append(line);
-            br.close();
-            Type listType = new TypeToken<ArrayList<AppEntry>>(){}.getType();
-            List<AppEntry> list = gson.fromJson(sb.toString(), listType);
-            return list != null ? list : new ArrayList<AppEntry>();
+            JsonReader r = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8)));
+            try {
+                List<AppEntry> list = new ArrayList<AppEntry>();
+                JsonToken t = r.peek();
+                if (t == JsonToken.BEGIN_ARRAY) {
+                    readApps(r, list); // legacy: bare array
+                } else if (t == JsonToken.BEGIN_OBJECT) {
+                    r.beginObject();
+                    while (r.hasNext()) {
+                        if ("apps".equals(r.nextName()) && r.peek() == JsonToken.BEGIN_ARRAY) {
+                            readApps(r, list);
+                        } else {
+                            r.skipValue();
+                        }
+                    }
+                    r.endObject();
+                }
+                return list;
+            } finally {
+                r.close();
+            }
         } catch (Exception e) {
+            Log.w(TAG, "Cannot read " + FILE + ": " + e.getMessage());
+            snapshotReadFailed = true;
             return new ArrayList<>();
         }
     }
+
+    private static void readApps(JsonReader r, List<AppEntry> out) throws IOException {
+        r.beginArray();
+        while (r.hasNext()) {
+            AppEntry e = ENTRY_ADAPTER.read(r);
+            if (e != null) out.add(e);
+        }
+        r.endArray();
+    }
+
+    /**
+     * The changes recorded in apps.journal: the last record per package, oldest first, null for a
+     * removed package. Damaged lines (a crash mid-append) are skipped, and so are records of
+     * another apps.json version: a crash in publish() between the rename and the journal delete
+     * leaves a journal that the new version already contains, possibly older than it.
+     */
+    private Map<String, AppEntry> readJournal() {
+        Map<String, AppEntry> latest = new LinkedHashMap<String, AppEntry>();
+        File journal = new File(ctx.getFilesDir(), JOURNAL);
+        if (!journal.exists()) return latest;
+        long version = readVersion();
+        int stale = 0;
+
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(journal), UTF8));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.length() == 0) continue;
+                    JournalRecord r;
+                    try {
+                        r = gson.fromJson(line, JournalRecord.class);
+                    } catch (JsonParseException torn) {
+                        Log.w(TAG, "Skipping damaged journal record");
+                        continue;
+                    }
+                    if (r == null || r.app == null || r.app.packageName == null) continue;
+                    if (r.base != null && r.base != version) {
+                        stale++;
+                        continue;
+                    }
+                    latest.remove(r.app.packageName);
+                    if (JournalRecord.OP_PUT.equals(r.op)) {
+                        latest.put(r.app.packageName, r.app);
+                    } else if (JournalRecord.OP_REMOVE.equals(r.op)) {
+                        latest.put(r.app.packageName, null);
+                    }
+                }
+            } finally {
+                br.close();
+            }
+            if (stale > 0) Log.w(TAG, "Ignored " + stale + " journal record(s) of an older " + FILE);
+        } catch (Exception e) {
+            Log.w(TAG, "journal replay failed after " + latest.size() + " packages: " + e.getMessage());
+        }
+        return latest;
+    }
+
+    /**
+     * Apply {@code changes} (as returned by {@link #readJournal()}) to the title-sorted content of
+     * one tab: changed apps leave the tab and re-enter it if they still belong there.
+     */
+    private static void patchTab(List<AppEntry> tabList, String tab, Map<String, AppEntry> changes) {
+        for (int i = tabList.size() - 1; i >= 0; i--) {
+            if (changes.containsKey(tabList.get(i).packageName)) tabList.remove(i);
+        }
+        for (AppEntry c : changes.values()) {
+            if (c != null && LibraryRepository.inTab(tab, c)) tabList.add(c);
+        }
+        Collections.sort(tabList, LibraryRepository.TITLE_ORDER);
+    }
+
+    /**
+     * Drop {@code removed}, then replace entries by package name (appending unknown ones), in
+     * O(list + changes).
+     */
+    private static void applyDelta(List<AppEntry> list, Collection<AppEntry> puts, Collection<String> removed) {
+        if (!removed.isEmpty()) {
+            Set<String> drop = new HashSet<String>(removed);
+            for (int i = list.size() - 1; i >= 0; i--) {
+                AppEntry e = list.get(i);
+                if (e != null && drop.contains(e.packageName)) list.remove(i);
+            }
+        }
+        if (puts.isEmpty()) return;
+        Map<String, Integer> index = new HashMap<String, Integer>(list.size() * 2);
+        for (int i = 0; i < list.size(); i++) {
+            AppEntry e = list.get(i);
+            if (e != null && e.packageName != null) index.put(e.packageName, i);
+        }
+        for (AppEntry p : puts) {
+            if (p == null || p.packageName == null) continue;
+            Integer at = index.get(p.packageName);
+            if (at != null) {
+                list.set(at, p);
+            } else {
+                index.put(p.packageName, list.size());
+                list.add(p);
+            }
+        }
+    }
+
+    /**
+     * The delta that turns {@code from} into {@code to}: the returned puts, plus the packages to
+     * drop, added to {@code removed}.
+     */
+    private static List<AppEntry> diff(Collection<AppEntry> from, List<AppEntry> to, List<String> removed) {
+        Map<String, AppEntry> old = new HashMap<String, AppEntry>(from.size() * 2);
+        for (AppEntry e : from) {
+            if (e != null && e.packageName != null) old.put(e.packageName, e);
+        }
+        List<AppEntry> puts = new ArrayList<AppEntry>();
+        for (int i = 0; i < to.size(); i++) {
+            AppEntry e = to.get(i);
+            if (e == null || e.packageName == null) continue;
+            if (!LibraryState.same(old.remove(e.packageName), e)) puts.add(e);
+        }
+        removed.addAll(old.keySet());
+        return puts;
+    }
+
+    private static AppEntry copyOf(AppEntry e) {
+        return new AppEntry(e);
+    }
+
+    /** Deep copy, so queued state never shares AppEntry objects with the UI. */
+    private static List<AppEntry> copyOf(Collection<AppEntry> list) {
+        List<AppEntry> out = new ArrayList<AppEntry>(list.size());
+        for (AppEntry e : list) {
+            if (e != null) out.add(copyOf(e));
+        }
+        return out;
+    }
 }
@@ -0,0 +1,464 @@
+package com.ast.ouyalaunch;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optional packed store for the tile thumbnails: one append-only data file (icons/atlas.dat) with
+ * all encoded thumbnails back to back, plus a small index (icons/atlas.idx) of package → offset,
+ * length and the source file's mtime.
+ *
+ * The grid reads thumbnails through one read-only memory mapping of the data file, so binding a
+ * tile costs no open/stat/close. The mapping is renewed once per batch ({@link #commit()}), not per
+ * appended thumbnail; thumbnails appended since are read from the file directly until then.
+ * Replaced and removed thumbnails leave dead bytes behind; once they exceed
+ * {@link #COMPACT_MIN_DEAD_BYTES} and a third of the file, {@link #commit()} rewrites the data file
+ * with only the live entries. The copy runs without holding the lock; entries written meanwhile
+ * are carried over, and the new file and index are swapped in at once.
+ *
+ * Writers (scan workers, package batches) call {@link #put}/{@link #remove} and then
+ * {@link #commit()} once to persist the index. Readers see changes immediately.
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas). {@link #contains(String)}, {@link #version(String)}
+ * and {@link #generation()} are lock-free (the UI thread asks them); the other methods synchronize.
+ * {@link #open(String)} returns a stream over a private slice that stays valid after later writes
+ * or compaction.
+ */
+public final class IconAtlas {
+
+    private static final String TAG = "IconAtlas";
+    private static final String DATA_FILE = "atlas.dat";
+    private static final String INDEX_FILE = "atlas.idx";
+    private static final int INDEX_MAGIC = 0x4F554958; // "OUIX"
+    private static final int INDEX_VERSION = 1;
+
+    static final long COMPACT_MIN_DEAD_BYTES = 512 * 1024;
+
+    /** Set to false to fall back to one thumbnail file per package. */
+    private static volatile boolean enabled = true;
+
+    private static IconAtlas instance;
+
+    private static final class Slot {
+        final long offset;
+        final int length;
+        final long sourceModified;
+
+        Slot(long offset, int length, long sourceModified) {
+            this.offset = offset;
+            this.length = length;
+            this.sourceModified = sourceModified;
+        }
+    }
+
+    private final File dataFile;
+    private final File indexFile;
+    /** Replaced as a whole by compaction; mutated under the lock, read without it. */
+    private volatile Map<String, Slot> index = new ConcurrentHashMap<String, Slot>();
+    private long dataEnd;
+    private long deadBytes;
+    private boolean dirty;
+    private boolean compacting;
+    private MappedByteBuffer mapped;
+    /** Bumped whenever a package enters, leaves or is replaced in the index. */
+    private volatile int generation;
+
+    private IconAtlas(File dir) {
+        this.dataFile = new File(dir, DATA_FILE);
+        this.indexFile = new File(dir, INDEX_FILE);
+        loadIndex();
+    }
+
+    public static synchronized IconAtlas get(Context ctx) {
+        if (instance == null) {
+            File dir = new File(ctx.getApplicationContext().getFilesDir(), "icons");
+            if (!dir.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                dir.mkdirs();
+            }
+            instance = new IconAtlas(dir);
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /** True for the atlas' own files in the icon dir. */
+    static boolean ownsFile(String name) {
+        return DATA_FILE.equals(name) || INDEX_FILE.equals(name);
+    }
+
+    public boolean contains(String pkg) {
+        return index.containsKey(pkg);
+    }
+
+    /**
+     * Changes whenever the packed bytes of {@code pkg} are replaced (or moved by compaction);
+     * -1 if it is not in the atlas. Lock-free.
+     */
+    public long version(String pkg) {
+        Slot s = index.get(pkg);
+        return s != null ? s.offset : -1;
+    }
+
+    /**
+     * Changes whenever {@link #contains(String)} or {@link #version(String)} may answer
+     * differently; lock-free.
+     */
+    public int generation() {
+        return generation;
+    }
+
+    /** True if the atlas holds {@code pkg} packed from the current version of {@code source}. */
+    public synchronized boolean isCurrent(String pkg, File source) {
+        Slot s = index.get(pkg);
+        return s != null && s.sourceModified == source.lastModified();
+    }
+
+    /** Append the encoded image in {@code source} for {@code pkg}, replacing any previous one. */
+    public synchronized boolean put(String pkg, File source) {
+        long len = source.length();
+        if (len <= 0 || len > Integer.MAX_VALUE) return false;
+        try {
+            FileInputStream in = new FileInputStream(source);
+            RandomAccessFile out = new RandomAccessFile(dataFile, "rw");
+            try {
+                FileChannel src = in.getChannel();
+                FileChannel dst = out.getChannel();
+                long done = 0;
+                while (done < len) {
+                    long n = dst.transferFrom(src, dataEnd + done, len - done);
+                    if (n <= 0) throw new IOException("Short transfer from " + source);
+                    done += n;
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+            Slot old = index.put(pkg, new Slot(dataEnd, (int) len, source.lastModified()));
+            if (old != null) deadBytes += old.length;
+            generation++;
+            dataEnd += len;
+            dirty = true;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "put failed for " + pkg + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public synchronized void remove(String pkg) {
+        Slot old = index.remove(pkg);
+        if (old != null) {
+            deadBytes += old.length;
+            dirty = true;
+            generation++;
+        }
+    }
+
+    /** Drop every package not in {@code keep}. */
+    public synchronized void retainOnly(Set<String> keep) {
+        Iterator<Map.Entry<String, Slot>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Slot> e = it.next();
+            if (!keep.contains(e.getKey())) {
+                deadBytes += e.getValue().length;
+                it.remove();
+                dirty = true;
+                generation++;
+            }
+        }
+    }
+
+    /** Stream over the packed bytes of {@code pkg}, or null if it is not in the atlas. */
+    public synchronized InputStream open(String pkg) {
+        Slot s = index.get(pkg);
+        if (s == null) return null;
+        ByteBuffer map = mapping();
+        if (map == null || s.offset + s.length > map.capacity()) {
+            return readDirect(s); // appended after the mapping was made: until the next commit()
+        }
+        ByteBuffer slice = map.duplicate();
+        slice.limit((int) (s.offset + s.length));
+        slice.position((int) s.offset);
+        return new ByteBufferInputStream(slice.slice());
+    }
+
+    /**
+     * Persist the index (and compact the data file if worthwhile) and renew the mapping. Call once
+     * per batch of writes.
+     */
+    public void commit() {
+        boolean compact;
+        synchronized (this) {
+            compact = !compacting && deadBytes >= COMPACT_MIN_DEAD_BYTES && deadBytes * 3 >= dataEnd;
+            if (compact) compacting = true;
+        }
+        if (compact) {
+            try {
+                compact();
+            } finally {
+                synchronized (this) {
+                    compacting = false;
+                }
+            }
+        }
+        synchronized (this) {
+            if (dirty) saveIndex();
+            if (mapped != null && mapped.capacity() < dataEnd) mapped = null; // remapped on next open()
+        }
+    }
+
+    // ---------- internal helpers ----------
+
+    /** Caller holds the lock. The mapping is only renewed by {@link #commit()}. */
+    private ByteBuffer mapping() {
+        if (mapped != null) return mapped;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+            try {
+                long size = Math.min(raf.length(), dataEnd);
+                mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                raf.close(); // the mapping stays valid
+            }
+            return mapped;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot map " + dataFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Caller holds the lock. One slot, read from the file (not yet mapped). */
+    private InputStream readDirect(Slot s) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+            try {
+                byte[] b = new byte[s.length];
+                raf.seek(s.offset);
+                raf.readFully(b);
+                return new ByteBufferInputStream(ByteBuffer.wrap(b));
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + dataFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Copy the live entries into a new data file without holding the lock (the data file is
+     * append-only, so the copied ranges do not change), then, under the lock, carry over what was
+     * put in the meantime and swap file and index.
+     */
+    private void compact() {
+        final Map<String, Slot> snapshot;
+        synchronized (this) {
+            snapshot = new HashMap<String, Slot>(index);
+        }
+        List<Map.Entry<String, Slot>> live = new ArrayList<Map.Entry<String, Slot>>(snapshot.entrySet());
+        Collections.sort(live, new Comparator<Map.Entry<String, Slot>>() {
+            @Override public int compare(Map.Entry<String, Slot> a, Map.Entry<String, Slot> b) {
+                return a.getValue().offset < b.getValue().offset ? -1
+                        : (a.getValue().offset == b.getValue().offset ? 0 : 1);
+            }
+        });
+
+        File tmp = new File(dataFile.getPath() + ".tmp");
+        Map<String, Slot> moved = new HashMap<String, Slot>();
+        long end = 0;
+        try {
+            RandomAccessFile in = new RandomAccessFile(dataFile, "r");
+            RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+            try {
+                out.setLength(0);
+                FileChannel src = in.getChannel();
+                FileChannel dst = out.getChannel();
+                for (int i = 0; i < live.size(); i++) {
+                    Slot s = live.get(i).getValue();
+                    copy(src, s, dst, end);
+                    moved.put(live.get(i).getKey(), new Slot(end, s.length, s.sourceModified));
+                    end += s.length;
+                }
+
+                synchronized (this) {
+                    // Entries put or removed while copying: the index decides, new bytes are copied now
+                    Map<String, Slot> next = new ConcurrentHashMap<String, Slot>();
+                    for (Map.Entry<String, Slot> e : index.entrySet()) {
+                        Slot now = e.getValue();
+                        if (snapshot.get(e.getKey()) == now) {
+                            next.put(e.getKey(), moved.get(e.getKey()));
+                        } else {
+                            copy(src, now, dst, end);
+                            next.put(e.getKey(), new Slot(end, now.length, now.sourceModified));
+                            end += now.length;
+                        }
+                    }
+                    out.getFD().sync();
+                    if (!tmp.renameTo(dataFile)) throw new IOException("Cannot replace " + dataFile);
+
+                    Log.i(TAG, "Compacted atlas: " + dataEnd + " → " + end + " bytes");
+                    index = next;
+                    dataEnd = end;
+                    deadBytes = 0;
+                    mapped = null; // slices handed out earlier keep the old mapping alive
+                    dirty = true;
+                    generation++;
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Compaction failed: " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    private static void copy(FileChannel src, Slot s, FileChannel dst, long at) throws IOException {
+        long done = 0;
+        while (done < s.length) {
+            long n = src.transferTo(s.offset + done, s.length - done, dst.position(at + done));
+            if (n <= 0) throw new IOException("Short transfer while compacting");
+            done += n;
+        }
+    }
+
+    private void loadIndex() {
+        index.clear();
+        dataEnd = 0;
+        deadBytes = 0;
+        if (!indexFile.exists() || !dataFile.exists()) return;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                    throw new IOException("Unknown index format");
+                }
+                dataEnd = in.readLong();
+                int count = in.readInt();
+                long live = 0;
+                for (int i = 0; i < count; i++) {
+                    String pkg = in.readUTF();
+                    Slot s = new Slot(in.readLong(), in.readInt(), in.readLong());
+                    index.put(pkg, s);
+                    live += s.length;
+                }
+                // Bytes appended after the last saved index (e.g. a crash mid-scan) are dead too
+                long fileLen = dataFile.length();
+                if (fileLen < dataEnd) throw new IOException("Data file truncated");
+                dataEnd = fileLen;
+                deadBytes = dataEnd - live;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding icon atlas: " + e.getMessage());
+            index.clear();
+            dataFile.delete();
+            indexFile.delete();
+            dataEnd = 0;
+            deadBytes = 0;
+        }
+    }
+
+    private void saveIndex() {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeLong(dataEnd);
+                out.writeInt(index.size());
+                for (Map.Entry<String, Slot> e : index.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().offset);
+                    out.writeInt(e.getValue().length);
+                    out.writeLong(e.getValue().sourceModified);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(indexFile)) throw new IOException("Cannot replace " + indexFile);
+            dirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write atlas index: " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /** Markable stream over a ByteBuffer, so BitmapFactory needs no extra buffering. */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override public int read() {
+            return buf.hasRemaining() ? (buf.get() & 0xFF) : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override public long skip(long n) {
+            int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + k);
+            return k;
+        }
+
+        @Override public int available() {
+            return buf.remaining();
+        }
+
+        @Override public boolean markSupported() {
+            return true;
+        }
+
+        @Override public synchronized void mark(int readLimit) {
+            buf.mark();
+        }
+
+        @Override public synchronized void reset() {
+            buf.reset();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.ast.ouyalaunch;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Owner of files/icons: an in-memory index of the file names present there, plus garbage
+ * collection against the library.
+ *
+ * The index is built with a single directory listing on a background thread right after
+ * creation, and is kept up to date by {@link #onWritten(File)} and {@link #delete(File)}. It is a
+ * concurrent map of file name to mtime, so {@link #exists(String)} and {@link #lastModified(String)}
+ * answer without a stat() and without taking a lock — the grid asks them on the UI thread. Until
+ * the listing is done the UI thread gets "no" and {@link #generation()} changes once it is; other
+ * threads wait for the listing. Rewriting a file (e.g. the icon of an updated app) changes its
+ * mtime and the generation too.
+ *
+ * {@link Listener}s hear about packages whose icon was rewritten in place, on the main thread.
+ *
+ * {@link #sweep(Collection, boolean)} deletes icons and thumbnails of packages that are no longer
+ * in the library (uninstalled, or removed with a long Y press), leftover temp files and stale atlas
+ * entries, and then enforces the byte budget. An empty library, or one that could not be read
+ * completely, deletes nothing for not being in it; only the budget is enforced then. Under the
+ * budget, untracked leftovers go first, then full-size icons (those with a thumbnail before those
+ * without), and thumbnails of installed apps only last.
+ * Sweeps run on the ScanCoordinator thread; all file I/O happens outside any lock the UI thread
+ * could wait on.
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas).
+ */
+public final class IconCacheManager {
+
+    public interface Listener {
+        /** The icons of {@code packages} were rewritten (same paths, new content). */
+        void onIconsChanged(Set<String> packages);
+    }
+
+    private static final String TAG = "IconCacheManager";
+    private static final String ICON_SUFFIX = ".png";
+    private static final String THUMB_SUFFIX = ".thumb";
+
+    /** Deletion order under budget pressure, lowest first. */
+    private static final int TIER_UNTRACKED = 0;
+    private static final int TIER_ICON_WITH_THUMB = 1;
+    private static final int TIER_ICON = 2;
+    private static final int TIER_THUMB = 3;
+
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    private static volatile long budgetBytes = DEFAULT_BUDGET_BYTES;
+
+    private static IconCacheManager instance;
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private static Handler mainHandler;
+
+    private final Context appCtx;
+    private final File dir;
+    private final String dirPrefix;
+    /** File name in dir → mtime; null until the first listing is done. */
+    private volatile Map<String, Long> present;
+    /** Bumped whenever the index changes. */
+    private volatile int generation;
+    /** Serializes the first listing; never taken by the UI thread. */
+    private final Object listLock = new Object();
+    /** One sweep at a time. */
+    private final Object sweepLock = new Object();
+
+    private IconCacheManager(Context ctx) {
+        this.appCtx = ctx.getApplicationContext();
+        this.dir = new File(appCtx.getFilesDir(), "icons");
+        if (!dir.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            dir.mkdirs();
+        }
+        this.dirPrefix = dir.getAbsolutePath() + File.separator;
+
+        new Thread(new Runnable() {
+            @Override public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                index();
+            }
+        }, "IconCacheIndex").start();
+    }
+
+    public static synchronized IconCacheManager get(Context ctx) {
+        if (instance == null) instance = new IconCacheManager(ctx);
+        return instance;
+    }
+
+    /** Upper bound for files/icons in bytes (icons, thumbnails and the atlas); 0 = unlimited. */
+    public static void setBudgetBytes(long bytes) {
+        budgetBytes = Math.max(0, bytes);
+    }
+
+    public static long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public File getIconDir() {
+        return dir;
+    }
+
+    /**
+     * Whether {@code path} exists; paths inside the icon dir are answered from memory. On the UI
+     * thread that is "no" while the first listing is still running.
+     */
+    public boolean exists(String path) {
+        if (path == null) return false;
+        if (!path.startsWith(dirPrefix) || path.indexOf(File.separatorChar, dirPrefix.length()) >= 0) {
+            return new File(path).exists();
+        }
+        Map<String, Long> p = present;
+        if (p == null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) return false;
+            p = index();
+        }
+        return p.containsKey(path.substring(dirPrefix.length()));
+    }
+
+    /**
+     * Like {@link File#lastModified()} (0 if missing); paths inside the icon dir are answered from
+     * memory, with the same rule for the UI thread as {@link #exists(String)}.
+     */
+    public long lastModified(String path) {
+        if (path == null) return 0;
+        if (!path.startsWith(dirPrefix) || path.indexOf(File.separatorChar, dirPrefix.length()) >= 0) {
+            return new File(path).lastModified();
+        }
+        Map<String, Long> p = present;
+        if (p == null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) return 0;
+            p = index();
+        }
+        Long m = p.get(path.substring(dirPrefix.length()));
+        return m != null ? m : 0;
+    }
+
+    public boolean exists(File f) {
+        return f != null && exists(f.getAbsolutePath());
+    }
+
+    /** Changes whenever {@link #exists(String)} may answer differently for the icon dir; lock-free. */
+    public int generation() {
+        return generation;
+    }
+
+    /** Record that {@code f} was (re)written in the icon dir. */
+    public void onWritten(File f) {
+        if (f == null || !dir.equals(f.getParentFile())) return;
+        Long m = f.lastModified();
+        if (!m.equals(index().put(f.getName(), m))) generation++;
+    }
+
+    public static void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public static void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Tell the listeners that the icons of {@code packages} were rewritten in place (e.g. after
+     * PACKAGE_REPLACED). Call after the new files and atlas entries are written.
+     */
+    public static void notifyIconsChanged(Collection<String> packages) {
+        if (listeners.isEmpty() || packages.isEmpty()) return;
+        final Set<String> event = Collections.unmodifiableSet(new HashSet<String>(packages));
+        Runnable r = new Runnable() {
+            @Override public void run() {
+                for (Listener l : listeners) l.onIconsChanged(event);
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            r.run();
+            return;
+        }
+        synchronized (IconCacheManager.class) {
+            if (mainHandler == null) mainHandler = new Handler(Looper.getMainLooper());
+        }
+        mainHandler.post(r);
+    }
+
+    /** Delete {@code f} and drop it from the index. Returns false if it still exists. */
+    public boolean delete(File f) {
+        if (f == null) return true;
+        boolean gone = !f.exists() || f.delete();
+        if (gone) {
+            if (dir.equals(f.getParentFile()) && index().remove(f.getName()) != null) generation++;
+        } else {
+            Log.w(TAG, "Could not delete " + f.getAbsolutePath());
+        }
+        return gone;
+    }
+
+    /**
+     * Delete everything in the icon dir that does not belong to {@code apps}, then enforce the byte
+     * budget. If {@code apps} is empty or not {@code complete} (apps.json could not be read), every
+     * file counts as in use and only the budget is enforced. Must run exclusive with scans (on the
+     * ScanCoordinator thread).
+     */
+    public void sweep(Collection<AppEntry> apps, boolean complete) {
+        synchronized (sweepLock) {
+            Set<String> keep = new HashSet<String>(apps.size() * 2);
+            Set<String> packages = new HashSet<String>(apps.size());
+            for (AppEntry e : apps) {
+                if (e == null || e.packageName == null) continue;
+                packages.add(e.packageName);
+                keep.add(e.packageName + ICON_SUFFIX);
+                keep.add(e.packageName + THUMB_SUFFIX);
+            }
+
+            // Re-list instead of trusting the index, the sweep is the place to resync it
+            Map<String, Long> index = index();
+            String[] names = dir.list();
+            if (names == null) return;
+            Set<String> listed = new HashSet<String>(names.length * 2);
+            Collections.addAll(listed, names);
+            index.keySet().retainAll(listed);
+            for (String name : names) index.put(name, new File(dir, name).lastModified());
+            generation++;
+
+            IconAtlas atlas = IconAtlas.isEnabled() ? IconAtlas.get(appCtx) : null;
+            if (!complete || keep.isEmpty()) {
+                Log.w(TAG, "Library " + (complete ? "is empty" : "was not read completely")
+                        + ", not deleting untracked icons");
+                List<File> files = new ArrayList<File>(names.length);
+                Set<String> icons = new HashSet<String>(names.length * 2);
+                for (String name : names) {
+                    if (IconAtlas.ownsFile(name)) continue;
+                    files.add(new File(dir, name));
+                    if (name.endsWith(ICON_SUFFIX) || name.endsWith(THUMB_SUFFIX)) icons.add(name);
+                }
+                enforceBudget(files, icons, atlas);
+                return;
+            }
+
+            int orphans = 0;
+            List<File> candidates = new ArrayList<File>();
+            for (String name : names) {
+                if (IconAtlas.ownsFile(name)) continue;
+                File f = new File(dir, name);
+                if (keep.contains(name)) {
+                    candidates.add(f);
+                } else if (f.isFile()) {
+                    if (f.delete()) {
+                        index.remove(name);
+                        orphans++;
+                    } else {
+                        candidates.add(f); // retried by the budget pass, before anything we keep
+                    }
+                }
+            }
+            generation++;
+
+            if (atlas != null) {
+                atlas.retainOnly(packages);
+                atlas.commit();
+            }
+            if (orphans > 0) Log.i(TAG, "Deleted " + orphans + " orphaned icon file(s)");
+
+            enforceBudget(candidates, keep, atlas);
+        }
+    }
+
+    // ---------- internal helpers ----------
+
+    /** The index, listing the dir first if that has not happened yet (blocks; not on the UI thread). */
+    private Map<String, Long> index() {
+        Map<String, Long> p = present;
+        if (p != null) return p;
+        synchronized (listLock) {
+            if (present == null) {
+                File[] files = dir.listFiles();
+                Map<String, Long> m = new ConcurrentHashMap<String, Long>(files != null ? files.length * 2 : 16);
+                if (files != null) {
+                    for (File f : files) m.put(f.getName(), f.lastModified());
+                }
+                present = m;
+                generation++;
+            }
+            return present;
+        }
+    }
+
+    private void enforceBudget(List<File> files, Set<String> keep, IconAtlas atlas) {
+        long budget = budgetBytes;
+        if (budget <= 0) return;
+
+        Map<String, Long> index = index();
+        long total = 0;
+        for (String name : index.keySet()) {
+            if (IconAtlas.ownsFile(name)) total += new File(dir, name).length();
+        }
+        final int[] tiers = new int[files.size()];
+        final long[] modified = new long[files.size()];
+        final long[] sizes = new long[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            File f = files.get(i);
+            String name = f.getName();
+            sizes[i] = f.length();
+            modified[i] = f.lastModified();
+            total += sizes[i];
+            if (!keep.contains(name)) {
+                tiers[i] = TIER_UNTRACKED;
+            } else if (name.endsWith(ICON_SUFFIX)) {
+                // The grid only needs the thumbnail
+                String pkg = name.substring(0, name.length() - ICON_SUFFIX.length());
+                boolean hasThumb = index.containsKey(pkg + THUMB_SUFFIX) || (atlas != null && atlas.contains(pkg));
+                tiers[i] = hasThumb ? TIER_ICON_WITH_THUMB : TIER_ICON;
+            } else {
+                tiers[i] = TIER_THUMB;
+            }
+        }
+        if (total <= budget) return;
+        long before = total;
+
+        // By tier, oldest first within a tier
+        List<Integer> order = new ArrayList<Integer>(files.size());
+        for (int i = 0; i < files.size(); i++) order.add(i);
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override public int compare(Integer a, Integer b) {
+                if (tiers[a] != tiers[b]) return tiers[a] < tiers[b] ? -1 : 1;
+                long ma = modified[a];
+                long mb = modified[b];
+                return ma < mb ? -1 : (ma == mb ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < order.size() && total > budget; i++) {
+            File f = files.get(order.get(i));
+            if (f.delete()) {
+                index.remove(f.getName());
+                generation++;
+                total -= sizes[order.get(i)];
+            }
+        }
+        Log.i(TAG, "Icon cache trimmed from " + before + " to " + total + " bytes (budget " + budget + ")");
+    }
+}
@@ -0,0 +1,385 @@
+package com.ast.ouyalaunch;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads tile icons off the UI thread.
+ *
+ * {@link #bind(AppEntry, ImageView)} shows a cached bitmap right away; on a miss it clears the
+ * view (placeholder) and queues a decode on a small background pool. The result is delivered on
+ * the main thread, and only to views that are still bound to the same icon. Several views waiting
+ * for the same icon share one decode, and {@link #recycle(ImageView)} drops a view's
+ * request - the decode itself is cancelled once nobody waits for it any more.
+ *
+ * {@link #prefetch(AppEntry)} warms the cache for tiles that are not bound yet (see
+ * {@link IconPrefetcher}); those decodes queue behind every request of a visible tile and are
+ * dropped together by {@link #cancelPrefetch()}.
+ *
+ * Icon sources, in order: the icon atlas, the thumbnail file, the full icon file. Where an app's
+ * icon comes from (including "nowhere") is resolved once and remembered until the atlas or the
+ * icon dir changes, so binding a known tile allocates nothing. Decoded bitmaps live in an
+ * {@link IconMemoryCache}; decodes reuse pooled bitmaps of the same size. Cache keys carry the
+ * version of their source (atlas slot, file mtime): an icon rewritten in place after an app update
+ * gets a new key, and the old bitmap simply ages out.
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas). bind/cancel must be called on the main thread; all
+ * bookkeeping happens there, workers only decode.
+ */
+public final class IconLoader {
+
+    private static final String TAG = "IconLoader";
+    private static final String ATLAS_PREFIX = "atlas:";
+    private static final char VERSION_SEPARATOR = '@';
+    private static final int THREADS = 2;
+    private static final int PRIORITY_VISIBLE = 0;
+    private static final int PRIORITY_PREFETCH = 1;
+
+    /**
+     * Where an app's icon comes from, resolved for one icon path and one generation of the atlas
+     * and icon dir indexes; {@link #key} is null if the app has no icon.
+     */
+    private static final class Source {
+        final String iconPath;  // AppEntry.iconPath this was resolved for
+        final String key;
+        final String pkg;       // atlas entry, or null
+        final String path;      // file to decode, or null
+        final boolean thumb;
+        final int iconsGeneration;
+        final int atlasGeneration;
+
+        Source(String iconPath, String key, String pkg, String path, boolean thumb,
+               int iconsGeneration, int atlasGeneration) {
+            this.iconPath = iconPath;
+            this.key = key;
+            this.pkg = pkg;
+            this.path = path;
+            this.thumb = thumb;
+            this.iconsGeneration = iconsGeneration;
+            this.atlasGeneration = atlasGeneration;
+        }
+
+        boolean isFor(String iconPath, int iconsGeneration, int atlasGeneration) {
+            return this.iconsGeneration == iconsGeneration && this.atlasGeneration == atlasGeneration
+                    && (this.iconPath == null ? iconPath == null : this.iconPath.equals(iconPath));
+        }
+    }
+
+    /** One decode, shared by every view waiting for {@link #key}. Ordered by priority, then FIFO. */
+    private final class Job implements Runnable, Comparable<Job> {
+        final Source src;
+        final String key;
+        final List<ImageView> targets = new ArrayList<ImageView>(2);
+        volatile boolean canceled;
+        int priority = PRIORITY_VISIBLE;
+        long seq;
+
+        Job(Source src) {
+            this.src = src;
+            this.key = src.key;
+        }
+
+        @Override public int compareTo(Job o) {
+            if (priority != o.priority) return priority < o.priority ? -1 : 1;
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+
+        @Override public void run() {
+            if (canceled) return;
+            final Bitmap bm = decode(this);
+            main.post(new Runnable() {
+                @Override public void run() {
+                    deliver(Job.this, bm);
+                }
+            });
+        }
+    }
+
+    private final IconAtlas atlas;
+    private final IconCacheManager icons;
+    private final IconMemoryCache cache;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor pool;
+    private long nextSeq;
+
+    // Main thread only
+    private final Map<String, Job> inFlight = new HashMap<String, Job>();
+    private final Map<ImageView, Job> pending = new HashMap<ImageView, Job>();
+    private final List<Job> prefetches = new ArrayList<Job>();
+    /** packageName -> resolved icon source, so binding a known tile builds no keys or paths. */
+    private final Map<String, Source> sources = new HashMap<String, Source>();
+
+    public IconLoader(Context ctx) {
+        // Gepackte Thumbnails (optional), spart open/stat pro Kachel
+        atlas = IconAtlas.isEnabled() ? IconAtlas.get(ctx) : null;
+        icons = IconCacheManager.get(ctx);
+
+        // 1/8 des Heaps für sichtbare/zuletzt gezeigte Icons, 1/32 für wiederverwendbare Bitmaps
+        final long maxMemory = Runtime.getRuntime().maxMemory();
+        cache = new IconMemoryCache((int) Math.min(Integer.MAX_VALUE, maxMemory / 8),
+                (int) Math.min(Integer.MAX_VALUE, maxMemory / 32));
+
+        final AtomicInteger n = new AtomicInteger();
+        pool = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "IconLoader-" + n.incrementAndGet());
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /** Show the icon of {@code e} in {@code target}: now if cached, otherwise once decoded. */
+    public void bind(AppEntry e, ImageView target) {
+        Source src = sourceFor(e);
+        Job waiting = pending.get(target);
+        if (waiting != null && src != null && waiting.key.equals(src.key)) return; // rebind, still loading
+        cancel(target);
+        if (src == null) {
+            show(target, null);
+            return;
+        }
+        Bitmap bm = cache.get(src.key);
+        if (bm != null) {
+            show(target, bm);
+            return;
+        }
+        show(target, null); // placeholder until decoded
+
+        Job running = inFlight.get(src.key);
+        if (running == null) {
+            running = new Job(src);
+            inFlight.put(src.key, running);
+            submit(running, PRIORITY_VISIBLE);
+        } else if (running.priority != PRIORITY_VISIBLE && pool.remove(running)) {
+            submit(running, PRIORITY_VISIBLE); // prefetch still queued: now needed on screen
+        }
+        running.targets.add(target);
+        pending.put(target, running);
+    }
+
+    /** Drop the pending request of {@code target}, e.g. when its holder is recycled. */
+    public void cancel(ImageView target) {
+        Job job = pending.remove(target);
+        if (job == null) return;
+        job.targets.remove(target);
+        if (job.targets.isEmpty()) drop(job);
+    }
+
+    /** Warm the cache with the icon of {@code e} at prefetch priority. */
+    public void prefetch(AppEntry e) {
+        Source src = sourceFor(e);
+        if (src == null || inFlight.containsKey(src.key) || cache.get(src.key) != null) return;
+        Job job = new Job(src);
+        inFlight.put(job.key, job);
+        prefetches.add(job);
+        submit(job, PRIORITY_PREFETCH);
+    }
+
+    /** Drop all prefetches nobody is waiting for yet, e.g. when the direction of travel changes. */
+    public void cancelPrefetch() {
+        for (int i = 0; i < prefetches.size(); i++) {
+            Job job = prefetches.get(i);
+            if (job.targets.isEmpty()) drop(job);
+        }
+        prefetches.clear();
+    }
+
+    /** The view's holder was recycled: cancel its request and let go of its bitmap. */
+    public void recycle(ImageView target) {
+        cancel(target);
+        show(target, null);
+    }
+
+    /** Cancel everything (adapter detached). */
+    public void cancelAll() {
+        Log.d(TAG, cache.toString());
+        for (Job job : inFlight.values()) {
+            job.canceled = true;
+            pool.remove(job);
+        }
+        inFlight.clear();
+        pending.clear();
+        prefetches.clear();
+    }
+
+    // ---------- internal helpers ----------
+
+    private void submit(Job job, int priority) {
+        job.priority = priority;
+        job.seq = nextSeq++;
+        pool.execute(job);
+    }
+
+    private void drop(Job job) {
+        job.canceled = true;
+        pool.remove(job);
+        if (inFlight.get(job.key) == job) inFlight.remove(job.key);
+    }
+
+    /** Where the icon of {@code e} comes from, or null if it has none. */
+    private Source sourceFor(AppEntry e) {
+        // Generations first: a change while resolving invalidates the result on the next bind
+        int iconsGen = icons.generation();
+        int atlasGen = atlas != null ? atlas.generation() : 0;
+        Source src = sources.get(e.packageName);
+        if (src == null || !src.isFor(e.iconPath, iconsGen, atlasGen)) {
+            src = resolve(e, iconsGen, atlasGen);
+            sources.put(e.packageName, src);
+        }
+        return src.key != null ? src : null;
+    }
+
+    /** Answered from in-memory indexes, no disk access. */
+    private Source resolve(AppEntry e, int iconsGen, int atlasGen) {
+        long slot = atlas != null && e.packageName != null ? atlas.version(e.packageName) : -1;
+        if (slot >= 0) {
+            String key = ATLAS_PREFIX + e.packageName + VERSION_SEPARATOR + slot;
+            return new Source(e.iconPath, key, e.packageName, null, true, iconsGen, atlasGen);
+        }
+        if (e.iconPath != null) {
+            // Vorhandensein und mtime aus dem Index des IconCacheManager, ohne stat() auf dem UI-Thread
+            String thumbPath = IconThumbnails.thumbPathFor(e.iconPath);
+            if (icons.exists(thumbPath)) {
+                String key = thumbPath + VERSION_SEPARATOR + icons.lastModified(thumbPath);
+                return new Source(e.iconPath, key, null, thumbPath, true, iconsGen, atlasGen);
+            }
+            if (icons.exists(e.iconPath)) {
+                String key = e.iconPath + VERSION_SEPARATOR + icons.lastModified(e.iconPath);
+                return new Source(e.iconPath, key, null, e.iconPath, false, iconsGen, atlasGen);
+            }
+        }
+        return new Source(e.iconPath, null, null, null, false, iconsGen, atlasGen); // no icon
+    }
+
+    private void forget(Source src) {
+        for (Iterator<Map.Entry<String, Source>> it = sources.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue() == src) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Main thread. Tracks what each view shows (in a view tag, no map entry per bind), so the cache
+     * never pools a visible bitmap. The last drawable is kept in a second tag: a recycled tile
+     * bound to the same icon again reuses it instead of wrapping the bitmap anew.
+     */
+    private void show(ImageView target, Bitmap bm) {
+        Bitmap old = (Bitmap) target.getTag(R.id.icon_bitmap);
+        if (old == bm) return;
+        target.setTag(R.id.icon_bitmap, bm);
+        if (bm != null) {
+            BitmapDrawable d = (BitmapDrawable) target.getTag(R.id.icon_drawable);
+            if (d == null || d.getBitmap() != bm) {
+                d = new BitmapDrawable(target.getResources(), bm);
+                target.setTag(R.id.icon_drawable, d);
+            }
+            target.setImageDrawable(d);
+            cache.onShown(bm);
+        } else {
+            target.setImageDrawable(null);
+        }
+        if (old != null) cache.onHidden(old);
+    }
+
+    /**
+     * Worker thread. Reads the bounds first to pick a pooled bitmap of exactly that size (API 16
+     * can only reuse same-sized bitmaps, and only for PNG and JPEG - WebP thumbnails decode into a
+     * new bitmap there). If the platform still rejects the pooled bitmap, it goes back to the pool
+     * and the icon is decoded without.
+     */
+    private Bitmap decode(Job job) {
+        try {
+            BitmapFactory.Options o = job.src.thumb ? IconThumbnails.decodeOptions() : new BitmapFactory.Options();
+            o.inMutable = true; // required for later reuse
+            o.inJustDecodeBounds = true;
+            decodeInto(job, o);
+            o.inJustDecodeBounds = false;
+            if (o.outWidth > 0 && o.outHeight > 0 && canDecodeInto(o.outMimeType)) {
+                // PNG thumbnails keep their alpha, so they decode as ARGB_8888 regardless
+                if (o.inPreferredConfig == null || "image/png".equals(o.outMimeType)) {
+                    o.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                }
+                o.inBitmap = cache.pool().take(o.outWidth, o.outHeight, o.inPreferredConfig);
+            }
+            Bitmap reuse = o.inBitmap;
+            if (reuse != null) {
+                try {
+                    Bitmap bm = decodeInto(job, o);
+                    if (bm != null) return bm;
+                } catch (IllegalArgumentException notReusable) {
+                    Log.d(TAG, "Cannot decode " + job.key + " into a pooled bitmap: " + notReusable.getMessage());
+                }
+                o.inBitmap = null;
+                cache.pool().offer(reuse);
+            }
+            return decodeInto(job, o);
+        } catch (Throwable t) {
+            Log.w(TAG, "Decode failed for " + job.key + ": " + t.getMessage());
+            return null;
+        }
+    }
+
+    /** Whether BitmapFactory accepts inBitmap for this format (before API 19: PNG and JPEG only). */
+    private static boolean canDecodeInto(String mimeType) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                || "image/png".equals(mimeType) || "image/jpeg".equals(mimeType);
+    }
+
+    private Bitmap decodeInto(Job job, BitmapFactory.Options o) {
+        Source src = job.src;
+        if (src.pkg != null) {
+            InputStream in = atlas.open(src.pkg);
+            return in != null ? BitmapFactory.decodeStream(in, null, o) : null;
+        }
+        return BitmapFactory.decodeFile(src.path, o);
+    }
+
+    /** Main thread. */
+    private void deliver(Job job, Bitmap bm) {
+        if (inFlight.get(job.key) == job) inFlight.remove(job.key);
+        prefetches.remove(job);
+        if (bm != null) {
+            cache.put(job.key, bm);
+        } else {
+            forget(job.src); // atlas or thumbnail gone? resolve again on the next bind
+        }
+        if (job.canceled) return;
+        for (int i = 0; i < job.targets.size(); i++) {
+            ImageView target = job.targets.get(i);
+            // Still waiting for this icon? (a rebind or recycle replaces/removes the entry)
+            if (pending.get(target) == job) {
+                pending.remove(target);
+                show(target, bm);
+            }
+        }
+        job.targets.clear();
+    }
+}
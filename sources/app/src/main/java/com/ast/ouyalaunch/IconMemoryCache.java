@@ -0,0 +1,183 @@
+package com.ast.ouyalaunch;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory cache for decoded tile icons, accounted in bytes ({@link Bitmap#getByteCount()}).
+ *
+ * Bitmaps evicted from the cache go to a {@link Pool}, bucketed by width, height and config, from
+ * which later decodes take a bitmap to decode into ({@code BitmapFactory.Options.inBitmap}), so
+ * browsing the grid does not allocate a new bitmap per tile. A bitmap that is still shown in a
+ * view is only pooled once it is no longer shown ({@link #onShown}/{@link #onHidden}).
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas). Everything but {@link #pool()} is main thread only;
+ * the pool itself is thread-safe.
+ */
+final class IconMemoryCache {
+
+    private final LruCache<String, Bitmap> lru;
+    private final Pool pool;
+    /** How many views show a bitmap. */
+    private final Map<Bitmap, Integer> shown = new IdentityHashMap<Bitmap, Integer>();
+    /** Evicted while shown: pooled when hidden. */
+    private final Map<Bitmap, Boolean> evictedShown = new IdentityHashMap<Bitmap, Boolean>();
+
+    IconMemoryCache(int maxBytes, int poolBytes) {
+        pool = new Pool(poolBytes);
+        lru = new LruCache<String, Bitmap>(maxBytes) {
+            @Override protected int sizeOf(String key, Bitmap bm) {
+                return bm.getByteCount();
+            }
+
+            @Override protected void entryRemoved(boolean evicted, String key, Bitmap old, Bitmap now) {
+                if (old == now) return;
+                release(old);
+            }
+        };
+    }
+
+    Bitmap get(String key) {
+        Bitmap bm = lru.get(key);
+        return bm != null && !bm.isRecycled() ? bm : null;
+    }
+
+    void put(String key, Bitmap bm) {
+        lru.put(key, bm);
+    }
+
+    Pool pool() {
+        return pool;
+    }
+
+    void onShown(Bitmap bm) {
+        Integer n = shown.get(bm);
+        shown.put(bm, n == null ? 1 : n + 1);
+    }
+
+    void onHidden(Bitmap bm) {
+        Integer n = shown.get(bm);
+        if (n == null) return;
+        if (n > 1) {
+            shown.put(bm, n - 1);
+            return;
+        }
+        shown.remove(bm);
+        if (evictedShown.remove(bm) != null) pool.offer(bm);
+    }
+
+    void clear() {
+        lru.evictAll();
+        pool.clear();
+    }
+
+    /** Hits / lookups since creation, 0..1. */
+    float hitRate() {
+        int hits = lru.hitCount();
+        int total = hits + lru.missCount();
+        return total > 0 ? (float) hits / total : 0f;
+    }
+
+    int bytesInUse() {
+        return lru.size();
+    }
+
+    int maxBytes() {
+        return lru.maxSize();
+    }
+
+    @Override public String toString() {
+        return "IconMemoryCache{" + (bytesInUse() / 1024) + "/" + (maxBytes() / 1024) + " KiB"
+                + ", hitRate=" + Math.round(hitRate() * 100) + "%"
+                + ", evictions=" + lru.evictionCount()
+                + ", " + pool + "}";
+    }
+
+    private void release(Bitmap bm) {
+        if (shown.containsKey(bm)) {
+            evictedShown.put(bm, Boolean.TRUE);
+        } else {
+            pool.offer(bm);
+        }
+    }
+
+    /**
+     * Reusable bitmaps, bucketed by exact width/height/config (what inBitmap needs before API 19),
+     * oldest dropped first beyond the byte budget.
+     */
+    static final class Pool {
+        private final int maxBytes;
+        private final Map<String, ArrayDeque<Bitmap>> buckets = new HashMap<String, ArrayDeque<Bitmap>>();
+        /** Insertion order over all buckets, for trimming. */
+        private final LinkedHashMap<Bitmap, String> order = new LinkedHashMap<Bitmap, String>();
+        private int bytes;
+        private int hits;
+        private int misses;
+
+        Pool(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /** A bitmap to decode a {@code width} x {@code height} image into, or null. */
+        synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+            ArrayDeque<Bitmap> q = buckets.get(key(width, height, config));
+            Bitmap bm = q != null ? q.pollLast() : null;
+            if (bm == null) {
+                misses++;
+                return null;
+            }
+            order.remove(bm);
+            bytes -= bm.getByteCount();
+            hits++;
+            return bm;
+        }
+
+        synchronized void offer(Bitmap bm) {
+            if (bm == null || bm.isRecycled() || !bm.isMutable() || bm.getConfig() == null) return;
+            int size = bm.getByteCount();
+            if (size > maxBytes || order.containsKey(bm)) return;
+            String k = key(bm.getWidth(), bm.getHeight(), bm.getConfig());
+            ArrayDeque<Bitmap> q = buckets.get(k);
+            if (q == null) {
+                q = new ArrayDeque<Bitmap>();
+                buckets.put(k, q);
+            }
+            q.addLast(bm);
+            order.put(bm, k);
+            bytes += size;
+            trim();
+        }
+
+        synchronized void clear() {
+            buckets.clear();
+            order.clear();
+            bytes = 0;
+        }
+
+        @Override public synchronized String toString() {
+            return "pool " + (bytes / 1024) + " KiB, reuse " + hits + "/" + (hits + misses);
+        }
+
+        private void trim() {
+            Iterator<Map.Entry<Bitmap, String>> it = order.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<Bitmap, String> oldest = it.next();
+                Bitmap bm = oldest.getKey();
+                buckets.get(oldest.getValue()).remove(bm);
+                it.remove();
+                bytes -= bm.getByteCount();
+            }
+        }
+
+        private static String key(int width, int height, Bitmap.Config config) {
+            return width + "x" + height + ":" + config;
+        }
+    }
+}
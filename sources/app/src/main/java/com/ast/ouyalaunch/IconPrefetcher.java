@@ -0,0 +1,127 @@
+package com.ast.ouyalaunch;
+
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.List;
+
+/**
+ * Warms the icon cache ahead of D-pad navigation.
+ *
+ * The grid is browsed one row at a time, so the next tiles are predictable: on every focus move
+ * inside the grid the prefetcher works out the vertical direction of travel and prefetches the
+ * {@link #setRowsAhead(int) rowsAhead} rows just beyond the visible ones in that direction. When
+ * the direction flips, the queued prefetches of the old direction are cancelled.
+ *
+ * {@link #warmTabs(List, List)} prefetches the first screen of the tabs reachable with L1/R1.
+ * All prefetches run at background priority behind the decodes of visible tiles (see
+ * {@link IconLoader#prefetch(AppEntry)}).
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas). Main thread only.
+ */
+public final class IconPrefetcher {
+
+    public static final int DEFAULT_ROWS_AHEAD = 2;
+
+    private final RecyclerView recycler;
+    private final GridLayoutManager layout;
+    private final AppAdapter adapter;
+    private final IconLoader loader;
+    private int rowsAhead = DEFAULT_ROWS_AHEAD;
+    private int lastPosition = RecyclerView.NO_POSITION;
+    private int direction; // -1 up, +1 down, 0 unknown
+
+    private final ViewTreeObserver.OnGlobalFocusChangeListener focusListener =
+            new ViewTreeObserver.OnGlobalFocusChangeListener() {
+                @Override public void onGlobalFocusChanged(View oldFocus, View newFocus) {
+                    if (newFocus != null && newFocus.getParent() == recycler) {
+                        onFocusMoved(recycler.getChildAdapterPosition(newFocus));
+                    }
+                }
+            };
+
+    public IconPrefetcher(RecyclerView recycler, GridLayoutManager layout, AppAdapter adapter) {
+        this.recycler = recycler;
+        this.layout = layout;
+        this.adapter = adapter;
+        this.loader = adapter.getIconLoader();
+    }
+
+    public void setRowsAhead(int rows) {
+        rowsAhead = Math.max(0, rows);
+    }
+
+    public int getRowsAhead() {
+        return rowsAhead;
+    }
+
+    public void attach() {
+        recycler.getViewTreeObserver().addOnGlobalFocusChangeListener(focusListener);
+    }
+
+    public void detach() {
+        ViewTreeObserver vto = recycler.getViewTreeObserver();
+        if (vto.isAlive()) vto.removeOnGlobalFocusChangeListener(focusListener);
+        loader.cancelPrefetch();
+    }
+
+    /**
+     * The visible tab changed (L1/R1): drop what was queued for the old tab and warm the first
+     * screen of the new neighbours. {@code first} is warmed before {@code second}; either may be
+     * null.
+     */
+    public void warmTabs(List<AppEntry> first, List<AppEntry> second) {
+        loader.cancelPrefetch();
+        lastPosition = RecyclerView.NO_POSITION;
+        direction = 0;
+        int screen = screenSize();
+        warm(first, screen);
+        warm(second, screen);
+    }
+
+    // ---------- internal helpers ----------
+
+    private void onFocusMoved(int pos) {
+        if (pos == RecyclerView.NO_POSITION) return;
+        int span = Math.max(1, layout.getSpanCount());
+        int rowDelta = lastPosition == RecyclerView.NO_POSITION ? 0 : pos / span - lastPosition / span;
+        lastPosition = pos;
+        if (rowDelta == 0) return; // sideways within the row: nothing new comes into view
+
+        int dir = rowDelta > 0 ? 1 : -1;
+        if (dir != direction) {
+            if (direction != 0) loader.cancelPrefetch(); // turned around
+            direction = dir;
+        }
+        if (rowsAhead == 0) return;
+
+        int count = rowsAhead * span;
+        if (dir > 0) {
+            int from = layout.findLastVisibleItemPosition() + 1;
+            for (int p = from; p < from + count; p++) prefetch(p);
+        } else {
+            int from = layout.findFirstVisibleItemPosition() - 1;
+            for (int p = from; p > from - count && p >= 0; p--) prefetch(p);
+        }
+    }
+
+    private void prefetch(int pos) {
+        AppEntry e = adapter.getItem(pos);
+        if (e != null) loader.prefetch(e);
+    }
+
+    private void warm(List<AppEntry> tab, int count) {
+        if (tab == null) return;
+        int n = Math.min(count, tab.size());
+        for (int i = 0; i < n; i++) loader.prefetch(tab.get(i));
+    }
+
+    /** Tiles on one screen: what is laid out now, at least two rows. */
+    private int screenSize() {
+        int span = Math.max(1, layout.getSpanCount());
+        return Math.max(recycler.getChildCount(), 2 * span);
+    }
+}
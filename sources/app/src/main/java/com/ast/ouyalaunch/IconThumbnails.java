@@ -0,0 +1,138 @@
+package com.ast.ouyalaunch;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tile-sized thumbnails of the cached OUYA icons, generated at scan time next to the full icon
+ * (icons/&lt;pkg&gt;.png → icons/&lt;pkg&gt;.thumb).
+ *
+ * Most ouya_icon.png files are 732x412 ARGB, while a tile is tile_width_px x tile_height_px. The
+ * thumbnail is decoded with inSampleSize straight to roughly tile size, center-cropped exactly like
+ * the ImageView's centerCrop would do, and stored as lossy WebP (or PNG if the icon uses alpha).
+ * The grid then decodes a small, pre-sized image, as RGB_565 where possible.
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas). Safe to use from several scan workers at once.
+ */
+public final class IconThumbnails {
+
+    private static final String TAG = "IconThumbnails";
+    private static final String THUMB_SUFFIX = ".thumb";
+    private static final int WEBP_QUALITY = 85;
+
+    private final int width;
+    private final int height;
+
+    public IconThumbnails(int width, int height) {
+        this.width = Math.max(1, width);
+        this.height = Math.max(1, height);
+    }
+
+    /** Thumbnails sized for the grid tiles (R.dimen.tile_width_px x R.dimen.tile_height_px). */
+    public static IconThumbnails forTiles(Context ctx) {
+        return new IconThumbnails(
+                ctx.getResources().getDimensionPixelSize(R.dimen.tile_width_px),
+                ctx.getResources().getDimensionPixelSize(R.dimen.tile_height_px));
+    }
+
+    /** Thumbnail path belonging to a cached icon path, or null. */
+    public static String thumbPathFor(String iconPath) {
+        if (iconPath == null) return null;
+        int dot = iconPath.lastIndexOf('.');
+        int slash = iconPath.lastIndexOf('/');
+        String base = dot > slash ? iconPath.substring(0, dot) : iconPath;
+        return base + THUMB_SUFFIX;
+    }
+
+    /** Options for decoding a thumbnail in the grid (prefers RGB_565, no density scaling). */
+    public static BitmapFactory.Options decodeOptions() {
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inPreferredConfig = Bitmap.Config.RGB_565;
+        o.inScaled = false;
+        o.inDither = true;
+        return o;
+    }
+
+    /**
+     * Create the thumbnail for {@code icon} unless an up-to-date one exists. Returns the thumbnail
+     * file, or null if the icon could not be decoded.
+     */
+    public File ensure(File icon) {
+        File thumb = new File(thumbPathFor(icon.getPath()));
+        if (thumb.exists() && thumb.lastModified() >= icon.lastModified()) return thumb;
+        return create(icon, thumb) ? thumb : null;
+    }
+
+    private boolean create(File icon, File thumb) {
+        try {
+            // 1) Bounds only, to pick the sample size
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(icon.getPath(), bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return false;
+
+            // 2) Largest power-of-two reduction that still covers the tile
+            int sample = 1;
+            while (bounds.outWidth / (sample * 2) >= width && bounds.outHeight / (sample * 2) >= height) {
+                sample *= 2;
+            }
+            BitmapFactory.Options o = new BitmapFactory.Options();
+            o.inSampleSize = sample;
+            o.inScaled = false;
+            Bitmap src = BitmapFactory.decodeFile(icon.getPath(), o);
+            if (src == null) return false;
+
+            // 3) Center-crop to the tile aspect ratio and scale to the exact tile size
+            Bitmap scaled = centerCrop(src, width, height);
+            if (scaled != src) src.recycle();
+
+            boolean alpha = scaled.hasAlpha();
+            File tmp = new File(thumb.getPath() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                scaled.compress(alpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.WEBP,
+                        alpha ? 100 : WEBP_QUALITY, fos);
+                fos.flush();
+            } finally {
+                fos.close();
+                scaled.recycle();
+            }
+            if (!tmp.renameTo(thumb)) {
+                thumb.delete();
+                if (!tmp.renameTo(thumb)) {
+                    tmp.delete();
+                    return false;
+                }
+            }
+            return true;
+        } catch (Throwable t) {
+            Log.w(TAG, "Thumbnail failed for " + icon.getPath() + ": " + t.getMessage());
+            return false;
+        }
+    }
+
+    private static Bitmap centerCrop(Bitmap src, int w, int h) {
+        int sw = src.getWidth();
+        int sh = src.getHeight();
+        if (sw == w && sh == h) return src;
+
+        // Same math as ImageView.ScaleType.CENTER_CROP
+        int cw = sw;
+        int ch = sh;
+        if ((long) sw * h > (long) sh * w) {
+            cw = Math.max(1, Math.round(sh * (w / (float) h)));
+        } else {
+            ch = Math.max(1, Math.round(sw * (h / (float) w)));
+        }
+        Bitmap cropped = (cw == sw && ch == sh) ? src
+                : Bitmap.createBitmap(src, (sw - cw) / 2, (sh - ch) / 2, cw, ch);
+        Bitmap scaled = Bitmap.createScaledBitmap(cropped, w, h, true);
+        if (cropped != src && cropped != scaled) cropped.recycle();
+        return scaled;
+    }
+}
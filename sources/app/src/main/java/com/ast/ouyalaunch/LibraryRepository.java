@@ -0,0 +1,456 @@
+package com.ast.ouyalaunch;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Indexed, in-memory view of the library on top of {@link DataStore}.
+ *
+ * Keeps a package-name hash index plus title-sorted lists for the whole library, for every genre
+ * and for the favorites, so that
+ * - lookups by package are O(1),
+ * - adding, removing or re-genring one app is a binary search plus one list insert/remove per
+ *   affected view,
+ * - merging scan results ({@link #mergeScan(Collection)}) is O(n + m) after sorting the new apps.
+ *
+ * Titles are ordered by the collator of the default locale. Each entry caches the collation key
+ * of its title, so a comparison is a key compare instead of lower-casing both titles.
+ *
+ * The views returned by {@link #all()}, {@link #genre(String)}, {@link #favorites()} and
+ * {@link #tab(String)} are live and read-only. AppEntry objects held by the repository must only
+ * be changed through it (title, genre and favorite are sort/index keys).
+ *
+ * {@link #load()} copies the process-wide {@link LibraryState}; {@link #save()} and
+ * {@link #saveOne(String)} persist to the DataStore, based on the state that was loaded, and then
+ * publish what changed since the last load/save to that state, with this repository as the source.
+ *
+ * Not thread-safe: use one repository per thread (the UI keeps its own, background tasks load a
+ * fresh one).
+ */
+public final class LibraryRepository {
+
+    public static final String FAVORITES = "Favorites";
+    public static final String DEFAULT_GENRE = "Casual";
+
+    /** Collator for titles: locale-aware, case-insensitive (SECONDARY strength). */
+    private static final Collator COLLATOR;
+    static {
+        COLLATOR = Collator.getInstance();
+        COLLATOR.setStrength(Collator.SECONDARY);
+    }
+
+    /** Locale-aware, case-insensitive title order, package name as tie breaker, so the order is total. */
+    public static final Comparator<AppEntry> TITLE_ORDER = new Comparator<AppEntry>() {
+        @Override public int compare(AppEntry a, AppEntry b) {
+            int c = titleKey(a).compareTo(titleKey(b));
+            if (c != 0) return c;
+            String pa = a.packageName != null ? a.packageName : "";
+            String pb = b.packageName != null ? b.packageName : "";
+            return pa.compareTo(pb);
+        }
+    };
+
+    private final DataStore store;
+    private final Map<String, AppEntry> byPackage = new HashMap<String, AppEntry>();
+    private final List<AppEntry> byTitle = new ArrayList<AppEntry>();
+    private final Map<String, List<AppEntry>> byGenre = new LinkedHashMap<String, List<AppEntry>>();
+    private final List<AppEntry> favorites = new ArrayList<AppEntry>();
+    /** Packages changed since the last load/save; {@code replaced} means everything. */
+    private final Set<String> changed = new HashSet<String>();
+    private boolean replaced;
+    /**
+     * What this repository knows to be persisted - the content at the last load/save/sync - and
+     * the DataStore stamp of it, if known. The base of the next commit: a replace that turns out
+     * to be stale is committed as its difference to this content.
+     */
+    private final Map<String, AppEntry> base = new HashMap<String, AppEntry>();
+    private DataStore.Stamp baseStamp;
+    /** See {@link #isComplete()}. */
+    private boolean complete = true;
+
+    public LibraryRepository(DataStore store) {
+        this.store = store;
+    }
+
+    /** In-memory repository (no DataStore) over {@code apps}. */
+    public static LibraryRepository of(Collection<AppEntry> apps) {
+        LibraryRepository r = new LibraryRepository(null);
+        r.replaceAll(apps);
+        return r;
+    }
+
+    // ---------- persistence ----------
+
+    public LibraryRepository load() {
+        LibraryState state = LibraryState.get(store);
+        replaceAll(state.copyApps());
+        base.clear();
+        for (AppEntry e : state.apps()) base.put(e.packageName, e); // immutable, can be shared
+        baseStamp = state.stamp();
+        complete = state.isComplete();
+        changed.clear();
+        replaced = false;
+        return this;
+    }
+
+    public void save() {
+        if (replaced) {
+            // Only after replaceAll: the whole library is new
+            List<AppEntry> all = toList();
+            if (!store.save(all, true, baseStamp, base.values())) return;
+            LibraryState.replace(all, this);
+            complete = true;
+            base.clear();
+            for (AppEntry e : all) base.put(e.packageName, new AppEntry(e));
+        } else if (!changed.isEmpty()) {
+            List<AppEntry> puts = new ArrayList<AppEntry>(changed.size());
+            List<String> removed = new ArrayList<String>();
+            for (String pkg : changed) {
+                AppEntry e = byPackage.get(pkg);
+                if (e != null) {
+                    puts.add(e);
+                } else {
+                    removed.add(pkg);
+                }
+            }
+            // Only the delta, so concurrent writers' changes to other packages are kept
+            if (!store.commit(baseStamp, puts, removed)) return; // retried on the next save
+            LibraryState.update(puts, removed, this);
+            rebase(puts, removed);
+        }
+        changed.clear();
+        replaced = false;
+        baseStamp = null; // the files moved on; commits rebase against the content
+    }
+
+    /** Persist a single app after setGenre/setFavorite. */
+    public void saveOne(String pkg) {
+        AppEntry e = byPackage.get(pkg);
+        if (e == null) return;
+        List<AppEntry> puts = Collections.singletonList(e);
+        if (!store.commit(baseStamp, puts, Collections.<String>emptyList())) return;
+        LibraryState.update(puts, Collections.<String>emptyList(), this);
+        rebase(puts, Collections.<String>emptyList());
+        baseStamp = null;
+        changed.remove(pkg);
+    }
+
+    /**
+     * Take over the {@code changed} packages from {@code state} (published by someone else).
+     * Returns the tabs whose content changed: genres and/or {@link #FAVORITES}.
+     */
+    public Set<String> sync(LibraryState state, Collection<String> changedPkgs) {
+        Set<String> tabs = new HashSet<String>();
+        for (String pkg : changedPkgs) {
+            AppEntry old = remove(pkg);
+            if (old != null) touch(tabs, old);
+            AppEntry now = state.get(pkg);
+            if (now != null) {
+                AppEntry e = new AppEntry(now);
+                add(e);
+                touch(tabs, e);
+                base.put(pkg, now);
+            } else {
+                base.remove(pkg);
+            }
+            changed.remove(pkg); // already in the state
+        }
+        baseStamp = null;
+        return tabs;
+    }
+
+    // ---------- queries ----------
+
+    /**
+     * False if {@link #load()} could not read apps.json (the library may miss installed apps) and
+     * no complete library was saved since; see {@link LibraryState#isComplete()}.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int size() {
+        return byPackage.size();
+    }
+
+    public boolean contains(String pkg) {
+        return pkg != null && byPackage.containsKey(pkg);
+    }
+
+    public AppEntry get(String pkg) {
+        return pkg != null ? byPackage.get(pkg) : null;
+    }
+
+    /** All apps, sorted by title. */
+    public List<AppEntry> all() {
+        return Collections.unmodifiableList(byTitle);
+    }
+
+    /** Apps of one genre, sorted by title. */
+    public List<AppEntry> genre(String genre) {
+        List<AppEntry> l = byGenre.get(genre);
+        return l != null ? Collections.unmodifiableList(l) : Collections.<AppEntry>emptyList();
+    }
+
+    /** Favorites, sorted by title. */
+    public List<AppEntry> favorites() {
+        return Collections.unmodifiableList(favorites);
+    }
+
+    /** Content of a launcher tab: the favorites for "Favorites", otherwise the genre. */
+    public List<AppEntry> tab(String tab) {
+        return FAVORITES.equals(tab) ? favorites() : genre(tab);
+    }
+
+    /** True if {@code e} belongs in launcher tab {@code tab}, see {@link #tab(String)}. */
+    public static boolean inTab(String tab, AppEntry e) {
+        if (FAVORITES.equals(tab)) return e.favorite;
+        String g = e.genre == null || e.genre.length() == 0 ? DEFAULT_GENRE : e.genre;
+        return g.equals(tab);
+    }
+
+    /** Position of {@code e} in {@link #tab(String)}, or -1. */
+    public int indexInTab(String tab, AppEntry e) {
+        List<AppEntry> l = FAVORITES.equals(tab) ? favorites : byGenre.get(tab);
+        if (l == null) return -1;
+        int pos = Collections.binarySearch(l, e, TITLE_ORDER);
+        return pos >= 0 && l.get(pos) == e ? pos : -1;
+    }
+
+    /**
+     * The library as one list for saving: genres in tab order ({@code AppEntry.GENRES}),
+     * unknown genres at the end, each sorted by title.
+     */
+    public List<AppEntry> toList() {
+        List<AppEntry> out = new ArrayList<AppEntry>(byPackage.size());
+        for (String g : AppEntry.GENRES) {
+            List<AppEntry> l = byGenre.get(g);
+            if (l != null) out.addAll(l);
+        }
+        for (Map.Entry<String, List<AppEntry>> e : byGenre.entrySet()) {
+            if (!AppEntry.GENRES.contains(e.getKey())) out.addAll(e.getValue());
+        }
+        return out;
+    }
+
+    // ---------- mutations ----------
+
+    /** Replace the whole content. */
+    public void replaceAll(Collection<AppEntry> apps) {
+        replaced = true;
+        changed.clear();
+        byPackage.clear();
+        byTitle.clear();
+        byGenre.clear();
+        favorites.clear();
+        for (AppEntry e : apps) {
+            if (e == null || e.packageName == null) continue;
+            if (e.genre == null || e.genre.length() == 0) e.genre = DEFAULT_GENRE;
+            AppEntry dup = byPackage.put(e.packageName, e);
+            if (dup != null) byTitle.remove(dup);
+            byTitle.add(e);
+        }
+        Collections.sort(byTitle, TITLE_ORDER);
+        // byTitle is sorted, so every derived view is filled in order
+        for (int i = 0; i < byTitle.size(); i++) {
+            AppEntry e = byTitle.get(i);
+            genreList(e.genre).add(e);
+            if (e.favorite) favorites.add(e);
+        }
+    }
+
+    /** Add {@code e}, replacing an app with the same package. */
+    public void add(AppEntry e) {
+        if (e == null || e.packageName == null) return;
+        remove(e.packageName);
+        if (e.genre == null || e.genre.length() == 0) e.genre = DEFAULT_GENRE;
+        changed.add(e.packageName);
+        byPackage.put(e.packageName, e);
+        insertSorted(byTitle, e);
+        insertSorted(genreList(e.genre), e);
+        if (e.favorite) insertSorted(favorites, e);
+    }
+
+    /** Remove an app; returns it, or null if unknown. */
+    public AppEntry remove(String pkg) {
+        AppEntry e = pkg != null ? byPackage.remove(pkg) : null;
+        if (e == null) return null;
+        changed.add(pkg);
+        removeSorted(byTitle, e);
+        List<AppEntry> g = byGenre.get(e.genre);
+        if (g != null) removeSorted(g, e);
+        if (e.favorite) removeSorted(favorites, e);
+        return e;
+    }
+
+    public void setGenre(String pkg, String genre) {
+        AppEntry e = get(pkg);
+        if (e == null || genre == null || genre.equals(e.genre)) return;
+        List<AppEntry> old = byGenre.get(e.genre);
+        if (old != null) removeSorted(old, e);
+        e.genre = genre;
+        changed.add(pkg);
+        insertSorted(genreList(genre), e);
+    }
+
+    public void setFavorite(String pkg, boolean favorite) {
+        AppEntry e = get(pkg);
+        if (e == null || e.favorite == favorite) return;
+        e.favorite = favorite;
+        changed.add(pkg);
+        if (favorite) {
+            insertSorted(favorites, e);
+        } else {
+            removeSorted(favorites, e);
+        }
+    }
+
+    /** Take title and icon from a rescanned APK, keeping genre and favorite. */
+    public void updateFromScan(String pkg, String title, String iconPath) {
+        AppEntry e = get(pkg);
+        if (e == null) return;
+        e.iconPath = iconPath;
+        changed.add(pkg);
+        if (title == null || title.equals(e.title)) return;
+        remove(pkg);
+        e.title = title;
+        add(e);
+    }
+
+    /**
+     * Add the apps from {@code freshScan} that are not in the library yet; existing apps (and
+     * their genre and favorite) stay untouched. Returns the added apps, sorted by title.
+     * O(n + m log m) for n known and m scanned apps.
+     */
+    public List<AppEntry> mergeScan(Collection<AppEntry> freshScan) {
+        List<AppEntry> added = new ArrayList<AppEntry>();
+        Map<String, AppEntry> seen = new HashMap<String, AppEntry>();
+        for (AppEntry n : freshScan) {
+            if (n == null || n.packageName == null) continue;
+            if (byPackage.containsKey(n.packageName) || seen.containsKey(n.packageName)) continue;
+            if (n.genre == null || n.genre.length() == 0) n.genre = DEFAULT_GENRE;
+            seen.put(n.packageName, n);
+            added.add(n);
+            changed.add(n.packageName);
+        }
+        if (added.isEmpty()) return added;
+        Collections.sort(added, TITLE_ORDER);
+        byPackage.putAll(seen);
+
+        mergeInto(byTitle, added);
+        Map<String, List<AppEntry>> addedByGenre = new HashMap<String, List<AppEntry>>();
+        List<AppEntry> addedFavorites = new ArrayList<AppEntry>();
+        for (int i = 0; i < added.size(); i++) {
+            AppEntry e = added.get(i);
+            List<AppEntry> l = addedByGenre.get(e.genre);
+            if (l == null) {
+                l = new ArrayList<AppEntry>();
+                addedByGenre.put(e.genre, l);
+            }
+            l.add(e);
+            if (e.favorite) addedFavorites.add(e);
+        }
+        for (Map.Entry<String, List<AppEntry>> e : addedByGenre.entrySet()) {
+            mergeInto(genreList(e.getKey()), e.getValue());
+        }
+        if (!addedFavorites.isEmpty()) mergeInto(favorites, addedFavorites);
+        return added;
+    }
+
+    // ---------- internal helpers ----------
+
+    /** A delta was persisted: it is part of the base now (as copies, entries here are mutable). */
+    private void rebase(Collection<AppEntry> puts, Collection<String> removed) {
+        for (String pkg : removed) base.remove(pkg);
+        for (AppEntry e : puts) base.put(e.packageName, new AppEntry(e));
+    }
+
+    private static void touch(Set<String> tabs, AppEntry e) {
+        tabs.add(e.genre);
+        if (e.favorite) tabs.add(FAVORITES);
+    }
+
+    private List<AppEntry> genreList(String genre) {
+        List<AppEntry> l = byGenre.get(genre);
+        if (l == null) {
+            l = new ArrayList<AppEntry>();
+            byGenre.put(genre, l);
+        }
+        return l;
+    }
+
+    private static void insertSorted(List<AppEntry> list, AppEntry e) {
+        int pos = Collections.binarySearch(list, e, TITLE_ORDER);
+        list.add(pos < 0 ? -pos - 1 : pos, e);
+    }
+
+    private static void removeSorted(List<AppEntry> list, AppEntry e) {
+        int pos = Collections.binarySearch(list, e, TITLE_ORDER);
+        if (pos >= 0 && list.get(pos) == e) {
+            list.remove(pos);
+        } else {
+            list.remove(e); // keys were changed behind our back; fall back to a linear search
+        }
+    }
+
+    /** Linear merge of the sorted {@code add} into the sorted {@code into}. */
+    private static void mergeInto(List<AppEntry> into, List<AppEntry> add) {
+        List<AppEntry> merged = new ArrayList<AppEntry>(into.size() + add.size());
+        int i = 0;
+        int j = 0;
+        while (i < into.size() && j < add.size()) {
+            if (TITLE_ORDER.compare(into.get(i), add.get(j)) <= 0) {
+                merged.add(into.get(i++));
+            } else {
+                merged.add(add.get(j++));
+            }
+        }
+        while (i < into.size()) merged.add(into.get(i++));
+        while (j < add.size()) merged.add(add.get(j++));
+        into.clear();
+        into.addAll(merged);
+    }
+
+    /**
+     * Collation key of a title, cached on the entry. Immutable, so entries shared between threads
+     * (see {@link LibraryState}) at worst compute it twice.
+     */
+    static final class TitleKey {
+        final String title;
+        final CollationKey key;
+
+        TitleKey(String title, CollationKey key) {
+            this.title = title;
+            this.key = key;
+        }
+    }
+
+    private static final CollationKey EMPTY_KEY = collationKey("");
+
+    /** Computed once per title; recomputed only if the title was replaced. */
+    private static CollationKey titleKey(AppEntry e) {
+        if (e == null || e.title == null) return EMPTY_KEY;
+        TitleKey k = e.titleKey;
+        if (k == null || k.title != e.title) {
+            k = new TitleKey(e.title, collationKey(e.title));
+            e.titleKey = k;
+        }
+        return k.key;
+    }
+
+    private static CollationKey collationKey(String s) {
+        synchronized (COLLATOR) { // Collator instances are not thread-safe
+            return COLLATOR.getCollationKey(s);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.ast.ouyalaunch;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional binary copy of the library (library.bin), written next to apps.json so a cold start can
+ * show the first tab without parsing JSON.
+ *
+ * Layout (big endian):
+ * <pre>
+ * header   magic "OULB", format version, apps.json version (long),
+ *          record count, tab count, records offset, tabs offset, strings offset
+ * records  RECORD_SIZE bytes each, in {@link LibraryRepository#TITLE_ORDER}:
+ *          package, title, genre, icon path (string refs, -1 = null), flags
+ * tabs     per tab: name ref, member count, members offset; then the member arrays
+ *          (record indices, already in display order)
+ * strings  per string: byte length (int) + UTF-8 bytes; deduplicated
+ * </pre>
+ *
+ * The snapshot carries the "version" of the apps.json it was written with (see DataStore); a
+ * snapshot of any other version must not be used. apps.json stays the source of truth (and the
+ * import/export format); this file can always be deleted.
+ *
+ * Every offset, index and length read from the file is checked against the buffer limit; a
+ * damaged file makes the readers throw {@link IllegalStateException} instead of returning garbage.
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas). Instances are immutable and only read the mapping.
+ */
+public final class LibrarySnapshot {
+
+    private static final String TAG = "LibrarySnapshot";
+    private static final int MAGIC = 0x4F554C42; // "OULB"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 5 * 4;
+    private static final int RECORD_SIZE = 5 * 4;
+    private static final int TAB_SIZE = 3 * 4;
+    private static final int FLAG_FAVORITE = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Set to false to always start from apps.json. */
+    private static volatile boolean enabled = true;
+
+    private final ByteBuffer buf;
+    private final long sourceVersion;
+    private final int recordCount;
+    private final int tabCount;
+    private final int recordsOffset;
+    private final int tabsOffset;
+    private final int stringsOffset;
+
+    private LibrarySnapshot(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) throw new IOException("Not a library snapshot");
+        if (buf.getInt(4) != VERSION) throw new IOException("Unsupported snapshot version " + buf.getInt(4));
+        sourceVersion = buf.getLong(8);
+        recordCount = buf.getInt(16);
+        tabCount = buf.getInt(20);
+        recordsOffset = buf.getInt(24);
+        tabsOffset = buf.getInt(28);
+        stringsOffset = buf.getInt(32);
+        if (!within(recordsOffset, recordCount, RECORD_SIZE)
+                || !within(tabsOffset, tabCount, TAB_SIZE)
+                || !within(stringsOffset, 0, 1)) {
+            throw new IOException("Truncated library snapshot");
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Map {@code file}; null if it does not exist or is not a readable snapshot (then it is
+     * deleted).
+     */
+    public static LibrarySnapshot open(File file) {
+        if (!file.exists()) return null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return new LibrarySnapshot(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+            } finally {
+                raf.close(); // the mapping stays valid
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding " + file + ": " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    /** True if this snapshot was written from apps.json version {@code version}. */
+    public boolean matches(long version) {
+        return version > 0 && version == sourceVersion;
+    }
+
+    public int size() {
+        return recordCount;
+    }
+
+    /** Number of apps in {@code tab}, or -1 if the snapshot has no such tab. */
+    public int tabSize(String tab) {
+        int t = findTab(tab);
+        if (t < 0) return -1;
+        int count = buf.getInt(tabsOffset + t * TAB_SIZE + 4);
+        check(count >= 0 && count <= recordCount, "tab size");
+        return count;
+    }
+
+    /**
+     * The apps of {@code tab} in display order, or null if the snapshot has no such tab. Only the
+     * records of that tab are decoded.
+     */
+    public List<AppEntry> tab(String tab) {
+        int t = findTab(tab);
+        if (t < 0) return null;
+        int base = tabsOffset + t * TAB_SIZE;
+        int count = buf.getInt(base + 4);
+        int members = buf.getInt(base + 8);
+        check(count <= recordCount && within(members, count, 4), "tab members");
+        List<AppEntry> out = new ArrayList<AppEntry>(count);
+        for (int i = 0; i < count; i++) {
+            out.add(record(buf.getInt(members + i * 4)));
+        }
+        return out;
+    }
+
+    /** All apps, in title order. */
+    public List<AppEntry> toList() {
+        List<AppEntry> out = new ArrayList<AppEntry>(recordCount);
+        for (int i = 0; i < recordCount; i++) out.add(record(i));
+        return out;
+    }
+
+    /**
+     * Write a snapshot of {@code apps} with per-tab membership for {@code tabs}, stamped with
+     * {@code sourceVersion}, the version of the apps.json holding the same apps. Temp file + rename.
+     */
+    public static void write(File file, List<AppEntry> apps, List<String> tabs, long sourceVersion) throws IOException {
+        LibraryRepository repo = LibraryRepository.of(apps);
+        List<AppEntry> records = repo.all();
+        Map<String, Integer> recordIndex = new HashMap<String, Integer>(records.size() * 2);
+        for (int i = 0; i < records.size(); i++) recordIndex.put(records.get(i).packageName, i);
+
+        StringTable strings = new StringTable();
+        int recordsOffset = HEADER_SIZE;
+        int tabsOffset = recordsOffset + records.size() * RECORD_SIZE;
+        int membersOffset = tabsOffset + tabs.size() * TAB_SIZE;
+        int memberInts = 0;
+        for (String t : tabs) memberInts += repo.tab(t).size();
+        int stringsOffset = membersOffset + memberInts * 4;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceVersion);
+            out.writeInt(records.size());
+            out.writeInt(tabs.size());
+            out.writeInt(recordsOffset);
+            out.writeInt(tabsOffset);
+            out.writeInt(stringsOffset);
+
+            for (int i = 0; i < records.size(); i++) {
+                AppEntry e = records.get(i);
+                out.writeInt(strings.ref(e.packageName));
+                out.writeInt(strings.ref(e.title));
+                out.writeInt(strings.ref(e.genre));
+                out.writeInt(strings.ref(e.iconPath));
+                out.writeInt(e.favorite ? FLAG_FAVORITE : 0);
+            }
+            int members = membersOffset;
+            for (String t : tabs) {
+                int n = repo.tab(t).size();
+                out.writeInt(strings.ref(t));
+                out.writeInt(n);
+                out.writeInt(members);
+                members += n * 4;
+            }
+            for (String t : tabs) {
+                List<AppEntry> l = repo.tab(t);
+                for (int i = 0; i < l.size(); i++) out.writeInt(recordIndex.get(l.get(i).packageName));
+            }
+            strings.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    // ---------- internal helpers ----------
+
+    private int findTab(String tab) {
+        if (tab == null) return -1;
+        for (int t = 0; t < tabCount; t++) {
+            if (tab.equals(string(buf.getInt(tabsOffset + t * TAB_SIZE)))) return t;
+        }
+        return -1;
+    }
+
+    /** Whether {@code count} items of {@code size} bytes starting at {@code offset} fit the buffer. */
+    private boolean within(int offset, int count, int size) {
+        return offset >= 0 && count >= 0 && (long) offset + (long) count * size <= buf.limit();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new IllegalStateException("Corrupt library snapshot (" + what + ")");
+    }
+
+    private AppEntry record(int i) {
+        check(i >= 0 && i < recordCount, "record index " + i);
+        int base = recordsOffset + i * RECORD_SIZE;
+        return new AppEntry(
+                string(buf.getInt(base)),
+                string(buf.getInt(base + 4)),
+                string(buf.getInt(base + 8)),
+                (buf.getInt(base + 16) & FLAG_FAVORITE) != 0,
+                string(buf.getInt(base + 12)));
+    }
+
+    private String string(int ref) {
+        if (ref == -1) return null;
+        check(ref >= 0 && (long) stringsOffset + ref + 4 <= buf.limit(), "string ref " + ref);
+        int at = stringsOffset + ref;
+        int len = buf.getInt(at);
+        check(len >= 0 && within(at + 4, len, 1), "string length " + len);
+        byte[] b = new byte[len];
+        ByteBuffer d = buf.duplicate();
+        d.position(at + 4);
+        d.get(b);
+        return new String(b, UTF8);
+    }
+
+    /** Deduplicating string table; refs are byte offsets from the start of the table. */
+    private static final class StringTable {
+        private final Map<String, Integer> refs = new HashMap<String, Integer>();
+        private final List<byte[]> bytes = new ArrayList<byte[]>();
+        private int size;
+
+        int ref(String s) {
+            if (s == null) return -1;
+            Integer r = refs.get(s);
+            if (r != null) return r;
+            byte[] b = s.getBytes(UTF8);
+            int at = size;
+            refs.put(s, at);
+            bytes.add(b);
+            size += 4 + b.length;
+            return at;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < bytes.size(); i++) {
+                out.writeInt(bytes.get(i).length);
+                out.write(bytes.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.ast.ouyalaunch;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process-wide, immutable snapshot of the library.
+ *
+ * The first {@link #get(DataStore)} loads it from the DataStore; afterwards readers just take the
+ * current version (lock-free) instead of parsing apps.json again. Writers - normally
+ * {@link LibraryRepository#save()}/{@link LibraryRepository#saveOne(String)}, right after they
+ * persisted - publish a new version with {@link #update} or {@link #replace}: copy-on-write plus a
+ * compare-and-set, so concurrent writers never lose each other's packages.
+ *
+ * {@link Listener}s get the packages that changed between two versions, on the main thread.
+ *
+ * The AppEntry objects of a snapshot are shared and must not be modified; use {@link #copyApps()}
+ * for a mutable copy.
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas).
+ */
+public final class LibraryState {
+
+    public interface Listener {
+        /**
+         * {@code changed} holds the packages that were added, removed or modified; {@code source}
+         * is the object that published the change (e.g. a LibraryRepository), so a listener can
+         * skip its own changes.
+         */
+        void onLibraryChanged(LibraryState state, Set<String> changed, Object source);
+    }
+
+    private static final AtomicReference<LibraryState> CURRENT = new AtomicReference<LibraryState>();
+    /** Bumped by every publish attempt, so a load racing with a write can tell it is stale. */
+    private static final AtomicLong WRITES = new AtomicLong();
+    private static final Object LOAD_LOCK = new Object();
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private static Handler mainHandler;
+
+    private final long version;
+    /** Files this content was loaded from; null once changes were published on top. */
+    private final DataStore.Stamp stamp;
+    /** False if apps.json could not be read at load and nothing replaced the library since. */
+    private final boolean complete;
+    private final Map<String, AppEntry> byPackage;
+    private final List<AppEntry> apps;
+
+    private LibraryState(long version, DataStore.Stamp stamp, boolean complete, Map<String, AppEntry> byPackage) {
+        this.version = version;
+        this.stamp = stamp;
+        this.complete = complete;
+        this.byPackage = Collections.unmodifiableMap(byPackage);
+        this.apps = Collections.unmodifiableList(new ArrayList<AppEntry>(byPackage.values()));
+    }
+
+    /** The current snapshot, loading it from {@code store} on first use. */
+    public static LibraryState get(DataStore store) {
+        LibraryState s = CURRENT.get();
+        if (s != null) return s;
+        synchronized (LOAD_LOCK) {
+            while ((s = CURRENT.get()) == null) {
+                long writes = WRITES.get();
+                DataStore.Versioned v = store.loadVersioned();
+                LibraryState loaded = new LibraryState(1, v.stamp, v.complete, index(copyOf(v.apps)));
+                // A write published while we were reading may be missing from what we read
+                if (WRITES.get() == writes && CURRENT.compareAndSet(null, loaded)) return loaded;
+            }
+            return s;
+        }
+    }
+
+    /** The current snapshot, or null if nobody has loaded it yet. */
+    public static LibraryState peek() {
+        return CURRENT.get();
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /**
+     * The DataStore stamp this content corresponds to, for an optimistic commit; null if unknown
+     * (a commit then rebases against {@link #apps()}).
+     */
+    public DataStore.Stamp stamp() {
+        return stamp;
+    }
+
+    /**
+     * False if apps.json existed but could not be read when this library was loaded: it may lack
+     * apps that are installed, so nothing should be deleted for not being in it.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int size() {
+        return byPackage.size();
+    }
+
+    /** Read-only; null if unknown. */
+    public AppEntry get(String pkg) {
+        return pkg != null ? byPackage.get(pkg) : null;
+    }
+
+    /** All apps, read-only, in the order they were saved. */
+    public List<AppEntry> apps() {
+        return apps;
+    }
+
+    /** Mutable deep copy of {@link #apps()}. */
+    public List<AppEntry> copyApps() {
+        return copyOf(apps);
+    }
+
+    /**
+     * Publish changes to single packages: {@code puts} are added or replace the known entry,
+     * {@code removed} packages are dropped. No-op if the state has not been loaded yet (the next
+     * load reads the already persisted change).
+     */
+    public static void update(Collection<AppEntry> puts, Collection<String> removed, Object source) {
+        WRITES.incrementAndGet();
+        LibraryState cur;
+        LibraryState next;
+        Set<String> changed;
+        do {
+            cur = CURRENT.get();
+            if (cur == null) return;
+            Map<String, AppEntry> map = new LinkedHashMap<String, AppEntry>(cur.byPackage);
+            changed = new HashSet<String>();
+            for (String pkg : removed) {
+                if (map.remove(pkg) != null) changed.add(pkg);
+            }
+            for (AppEntry e : puts) {
+                if (e == null || e.packageName == null) continue;
+                if (!same(map.get(e.packageName), e)) {
+                    map.put(e.packageName, copyOf(e));
+                    changed.add(e.packageName);
+                }
+            }
+            if (changed.isEmpty()) return;
+            next = new LibraryState(cur.version + 1, null, cur.complete, map);
+        } while (!CURRENT.compareAndSet(cur, next));
+        notifyListeners(next, changed, source);
+    }
+
+    /** Publish a complete new library, e.g. after a rescan. */
+    public static void replace(Collection<AppEntry> all, Object source) {
+        WRITES.incrementAndGet();
+        Map<String, AppEntry> map = index(copyOf(all));
+        LibraryState cur;
+        LibraryState next;
+        Set<String> changed;
+        do {
+            cur = CURRENT.get();
+            if (cur == null) return;
+            changed = new HashSet<String>();
+            for (AppEntry e : map.values()) {
+                if (!same(cur.byPackage.get(e.packageName), e)) changed.add(e.packageName);
+            }
+            for (String pkg : cur.byPackage.keySet()) {
+                if (!map.containsKey(pkg)) changed.add(pkg);
+            }
+            if (changed.isEmpty()) return;
+            next = new LibraryState(cur.version + 1, null, true, map);
+        } while (!CURRENT.compareAndSet(cur, next));
+        notifyListeners(next, changed, source);
+    }
+
+    public static void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public static void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    // ---------- internal helpers ----------
+
+    private static void notifyListeners(final LibraryState state, Set<String> changed, final Object source) {
+        if (listeners.isEmpty()) return;
+        final Set<String> event = Collections.unmodifiableSet(changed);
+        Runnable r = new Runnable() {
+            @Override public void run() {
+                for (Listener l : listeners) l.onLibraryChanged(state, event, source);
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            r.run();
+            return;
+        }
+        synchronized (LibraryState.class) {
+            if (mainHandler == null) mainHandler = new Handler(Looper.getMainLooper());
+        }
+        mainHandler.post(r);
+    }
+
+    private static Map<String, AppEntry> index(List<AppEntry> list) {
+        Map<String, AppEntry> map = new LinkedHashMap<String, AppEntry>(list.size() * 2);
+        for (AppEntry e : list) {
+            if (e != null && e.packageName != null) map.put(e.packageName, e);
+        }
+        return map;
+    }
+
+    static boolean same(AppEntry a, AppEntry b) {
+        return a != null && b != null
+                && a.favorite == b.favorite
+                && eq(a.packageName, b.packageName)
+                && eq(a.title, b.title)
+                && eq(a.genre, b.genre)
+                && eq(a.iconPath, b.iconPath);
+    }
+
+    private static boolean eq(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static List<AppEntry> copyOf(Collection<AppEntry> list) {
+        List<AppEntry> out = new ArrayList<AppEntry>(list.size());
+        for (AppEntry e : list) {
+            if (e != null) out.add(copyOf(e));
+        }
+        return out;
+    }
+
+    private static AppEntry copyOf(AppEntry e) {
+        return new AppEntry(e);
+    }
+}
@@ -8,7 +8,6 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -28,8 +27,8 @@ import androidx.recyclerview.widget.RecyclerView;
 import android.view.ViewGroup;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import android.os.Handler;
 
@@ -37,7 +36,7 @@ import android.os.Handler;
 
 public class MainActivity extends AppCompatActivity implements AppAdapter.OnAppClickListener {
 
-    public static final List<String> GENRES = Arrays.asList("Favorites", "Casual", "Action", "Racing", "Simulation", "RPG", "Apps");
+    public static final List<String> GENRES = AppEntry.GENRES;
 
     private RecyclerView recycler;
     private View overlayLoading;
@@ -64,11 +63,12 @@ public class MainActivity extends AppCompatActivity implements AppAdapter.OnAppC
     };
 
     private AppAdapter adapter;
+    private IconPrefetcher prefetcher;
     private int currentTab = 0; // default "Favorites"
     private DataStore dataStore;
-    private List<AppEntry> allApps = new ArrayList<>();
-    private List<List<AppEntry>> tabLists;
-    private boolean[] tabDirty;
+    private LibraryRepository library;
+    // true, solange der erste Tab aus library.bin kommt und apps.json im Hintergrund geladen wird
+    private boolean libraryPending;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -88,7 +88,11 @@ public class MainActivity extends AppCompatActivity implements AppAdapter.OnAppC
 
         applyNetworkIconTint();
 
-        dataStore = new DataStore(this);
+        // Write-behind: Genre-/Favoriten-Änderungen blockieren den UI-Thread nicht mit Datei-I/O
+        dataStore = new DataStore(this, true, true);
+        library = new LibraryRepository(dataStore);
+        LibraryState.addListener(libraryListener);
+        IconCacheManager.addListener(iconListener);
 
         updateNetworkIcon();
 
@@ -100,6 +104,9 @@ public class MainActivity extends AppCompatActivity implements AppAdapter.OnAppC
         recycler.addItemDecoration(new SpacingDecoration(getResources().getDimensionPixelSize(R.dimen.grid_spacing_px)));
         adapter = new AppAdapter(this, new ArrayList<AppEntry>(), this);
         recycler.setAdapter(adapter);
+        // Icons in Blickrichtung (und für die Nachbar-Tabs) vorab dekodieren
+        prefetcher = new IconPrefetcher(recycler, glm, adapter);
+        prefetcher.attach();
 
         // Fix für Geräte mit gleicher Auflösung aber anderer DPI:
         // In activity_main.xml werden dp-Margins/Paddings verwendet (OUYA-Layout passt damit).
@@ -116,17 +123,25 @@ public class MainActivity extends AppCompatActivity implements AppAdapter.OnAppC
 
         // first run?
         if (!dataStore.isCacheBuilt()) {
-            new ScanTask().execute();
+            overlayLoading.setVisibility(View.VISIBLE);
+            ScanCoordinator.get(this).requestFullScan(scanClient);
         } else {
-            allApps = dataStore.load();
-            markAllTabsDirty();
-            adapter.setData(filterByCurrentTab(allApps));
-            recycler.post(() -> {
-                // Prüfen, ob überhaupt ein View fokussiert ist
-                if (recycler.getFocusedChild() == null && recycler.getChildCount() > 0) {
-                    recycler.getChildAt(0).requestFocus();
-                }
-            });
+            // Schneller Kaltstart: erster Tab direkt aus library.bin (ohne JSON-Parsing),
+            // apps.json wird im Hintergrund geparst, der UI-Thread übernimmt nur das Ergebnis
+            List<AppEntry> firstTab = dataStore.loadTab(GENRES.get(currentTab));
+            if (firstTab != null) {
+                adapter.setData(firstTab, this::focusFirstTileIfNone);
+                libraryPending = true;
+                new Thread(() -> {
+                    // Parst apps.json einmal pro Prozess, library.load() kopiert danach nur noch
+                    LibraryState.get(dataStore);
+                    runOnUiThread(this::onLibraryLoaded);
+                }, "LibraryLoad").start();
+            } else {
+                library.load();
+                adapter.setData(currentTabList(), this::focusFirstTileIfNone);
+                recycler.post(() -> warmNeighbourTabs(1));
+            }
 
         }
 
@@ -245,74 +260,55 @@ public class MainActivity extends AppCompatActivity implements AppAdapter.OnAppC
     private void selectTab(int index) {
         currentTab = index;
         updateTabBackgrounds();
-        adapter.setData(filterByCurrentTab(allApps));
+        if (libraryPending) return; // onLibraryLoaded() zeigt den dann aktuellen Tab
+        adapter.setData(currentTabList(), this::focusFirstTileIfNone);
+
+    }
+
+    /** UI-Thread, nachdem LibraryState im Hintergrund geladen wurde (schneller Kaltstart). */
+    private void onLibraryLoaded() {
+        if (isFinishing()) return;
+        library.load();
+        libraryPending = false;
+        // gleicher Inhalt wie library.bin → der Diff meldet keine Änderungen
+        adapter.setData(currentTabList(), this::focusFirstTileIfNone);
+        warmNeighbourTabs(1);
+    }
+
+    /** Nach einem Inhaltswechsel: erste Kachel fokussieren, falls nichts fokussiert ist. */
+    private void focusFirstTileIfNone() {
         recycler.post(() -> {
             // Prüfen, ob überhaupt ein View fokussiert ist
             if (recycler.getFocusedChild() == null && recycler.getChildCount() > 0) {
                 recycler.getChildAt(0).requestFocus();
             }
         });
-
-    }
-
-    private void initTabCacheIfNeeded() {
-        if (tabLists == null || tabDirty == null || tabDirty.length != GENRES.size()) {
-            tabLists = new ArrayList<>();
-            tabDirty = new boolean[GENRES.size()];
-            for (int i = 0; i < GENRES.size(); i++) {
-                tabLists.add(new ArrayList<>());
-                tabDirty[i] = true;
-            }
-        }
     }
 
-    private void markAllTabsDirty() {
-        initTabCacheIfNeeded();
-        for (int i = 0; i < tabDirty.length; i++) {
-            tabDirty[i] = true;
-        }
-    }
-
-    private void rebuildTabList(int tabIndex) {
-        initTabCacheIfNeeded();
-        if (tabIndex < 0 || tabIndex >= GENRES.size()) return;
-
-        String genre = GENRES.get(tabIndex);
-        List<AppEntry> list = tabLists.get(tabIndex);
-        list.clear();
-
-        if (allApps == null) return;
-
-        for (AppEntry e : allApps) {
-            if ("Favorites".equals(genre)) {
-                if (e.favorite) list.add(e);
-            } else if (genre.equals(e.genre)) {
-                list.add(e);
-            }
-        }
-
-        if ("Favorites".equals(genre)) {
-            java.util.Collections.sort(list, new java.util.Comparator<AppEntry>() {
-                @Override
-                public int compare(AppEntry a, AppEntry b) {
-                    String ta = (a.title != null) ? a.title.toLowerCase() : "";
-                    String tb = (b.title != null) ? b.title.toLowerCase() : "";
-                    return ta.compareTo(tb);
-                }
-            });
-        }
-
-        tabDirty[tabIndex] = false;
+    /**
+     * Inhalt des aktuellen Tabs: eine (live, sortierte) Sicht des LibraryRepository, daher ohne
+     * Filtern oder Sortieren bei jedem Tab-Wechsel.
+     */
+    List<AppEntry> currentTabList() {
+        return library.tab(GENRES.get(currentTab));
     }
 
-List<AppEntry> filterByCurrentTab(List<AppEntry> ignored) {
-        initTabCacheIfNeeded();
+    // ==============================
+    // Streaming-Scan: Apps erscheinen, sobald ihr Icon im Cache liegt
+    // ==============================
 
-        if (tabDirty[currentTab]) {
-            rebuildTabList(currentTab);
-        }
+    /**
+     * Add an app reported by a running scan to the library; if it belongs to the current tab, the
+     * adapter gets the new tab content and animates just the inserted tile. Apps that are already
+     * known are ignored.
+     */
+    private void onAppStreamed(AppEntry e) {
+        if (e == null || e.packageName == null || library.contains(e.packageName)) return;
+        if (overlayLoading != null) overlayLoading.setVisibility(View.GONE);
 
-        return tabLists.get(currentTab);
+        library.add(e);
+        // Der Diff meldet nur die eingefügte Kachel
+        if (LibraryRepository.inTab(GENRES.get(currentTab), e)) adapter.setData(currentTabList());
     }
 
 
@@ -321,26 +317,15 @@ List<AppEntry> filterByCurrentTab(List<AppEntry> ignored) {
     // NEU: Löschen-Funktion
     // ==============================
     private void removeAppFromLauncher(String packageName) {
-        List<AppEntry> updated = new ArrayList<>();
+        if (libraryPending) return;
+        AppEntry app = library.remove(packageName);
+        if (app == null) return;
+        Log.i("RemoveApp", "App entfernt: " + app.title + " (" + app.packageName + ")");
 
-        for (AppEntry app : allApps) {
-            if (!app.packageName.equals(packageName)) {
-                updated.add(app);
-            } else {
-                Log.i("RemoveApp", "App entfernt: " + app.title + " (" + app.packageName + ")");
-            }
-        }
-
-        allApps = updated;
-        markAllTabsDirty();
-        dataStore.save(allApps, true);
-        adapter.setData(filterByCurrentTab(allApps));
-        recycler.post(() -> {
-            // Prüfen, ob überhaupt ein View fokussiert ist
-            if (recycler.getFocusedChild() == null && recycler.getChildCount() > 0) {
-                recycler.getChildAt(0).requestFocus();
-            }
-        });
+        library.save();
+        // Icon und Thumbnail der entfernten App im Hintergrund aufräumen
+        ScanCoordinator.get(this).sweepIconCache();
+        adapter.setData(currentTabList(), this::focusFirstTileIfNone);
 
     }
 
@@ -348,152 +333,69 @@ List<AppEntry> filterByCurrentTab(List<AppEntry> ignored) {
     // NEU: Rescan-Funktion
     // ==============================
     private void rescanAppsPreserveGenres() {
-        new AsyncTask<Void, Void, List<AppEntry>>() {
-            @Override
-            protected void onPreExecute() {
-                overlayLoading.setVisibility(View.VISIBLE);
-            }
-
-            @Override
-            protected List<AppEntry> doInBackground(Void... voids) {
-                List<AppEntry> existing = dataStore.load();
-                List<AppEntry> freshScan = AppScanner.buildCache(MainActivity.this);
-
-                // 1) Merge: nur neue Pakete hinzufügen, bestehende unverändert lassen
-                List<AppEntry> merged = new ArrayList<>(existing);
-                for (AppEntry n : freshScan) {
-                    boolean found = false;
-                    for (AppEntry o : existing) {
-                        if (o != null && n != null && o.packageName != null
-                                && o.packageName.equals(n.packageName)) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found) merged.add(n);
-                }
-
-                // 2) Pro-Genre gruppieren (ohne putIfAbsent)
-                java.util.HashMap<String, List<AppEntry>> genreMap = new java.util.HashMap<>();
-                for (AppEntry e : merged) {
-                    if (e == null) continue;
-                    String g = (e.genre != null && e.genre.length() > 0) ? e.genre : "Casual";
-                    List<AppEntry> bucket = genreMap.get(g);
-                    if (bucket == null) {
-                        bucket = new ArrayList<>();
-                        genreMap.put(g, bucket);
-                    }
-                    bucket.add(e);
-                }
-
-                // 3) Null-sicherer Comparator (A–Z)
-                java.util.Comparator<AppEntry> byTitleAZ = new java.util.Comparator<AppEntry>() {
-                    @Override public int compare(AppEntry a, AppEntry b) {
-                        String ta = (a != null && a.title != null) ? a.title : "";
-                        String tb = (b != null && b.title != null) ? b.title : "";
-                        return ta.toLowerCase().compareTo(tb.toLowerCase());
-                    }
-                };
-
-                // 4) Innerhalb jedes Genres sortieren
-                for (List<AppEntry> list : genreMap.values()) {
-                    java.util.Collections.sort(list, byTitleAZ);
-                }
-
-                // 5) In feste Genre-Reihenfolge zurückführen
-                List<AppEntry> sortedMerged = new ArrayList<>();
-                for (String g : GENRES) {
-                    List<AppEntry> bucket = genreMap.get(g);
-                    if (bucket != null) sortedMerged.addAll(bucket);
-                }
-                // Apps mit unbekanntem Genre (falls vorhanden) ans Ende
-                for (java.util.Map.Entry<String, List<AppEntry>> e : genreMap.entrySet()) {
-                    if (!GENRES.contains(e.getKey())) {
-                        sortedMerged.addAll(e.getValue());
-                    }
-                }
+        if (libraryPending) return;
+        // Läuft bereits ein Scan, wird nur auf dessen Ergebnis gewartet (kein zweiter Scan).
+        // Paketänderungen währenddessen sorgen selbst für einen Folge-Scan (runExclusive).
+        overlayLoading.setVisibility(View.VISIBLE);
+        ScanCoordinator.get(this).requestFullScan(scanClient);
+    }
 
-                dataStore.save(sortedMerged, true);
-                return sortedMerged;
+    /**
+     * Empfängt Ergebnisse des (einzigen) laufenden Scans, sowohl beim ersten Start als auch bei
+     * L2+R2. Der ScanCoordinator führt das Mergen (Genres bleiben erhalten) und Speichern aus.
+     */
+    private final ScanCoordinator.Client scanClient = new ScanCoordinator.Client() {
+        @Override
+        public void onAppFound(AppEntry entry) {
+            try {
+                onAppStreamed(entry);
+            } catch (Throwable t) {
+                Log.e("Scan", "onAppFound failed", t);
             }
+        }
+
+        @Override
+        public void onScanFinished(List<AppEntry> result) {
+            try {
+                if (overlayLoading != null)
+                    overlayLoading.setVisibility(View.GONE);
 
-            @Override
-            protected void onPostExecute(List<AppEntry> result) {
-                overlayLoading.setVisibility(View.GONE);
                 if (result == null) {
                     result = new ArrayList<>();
                 }
-                allApps = result;
-                markAllTabsDirty();
-                adapter.setData(filterByCurrentTab(allApps));
-                recycler.post(() -> {
-                    // Prüfen, ob überhaupt ein View fokussiert ist
-                    if (recycler.getFocusedChild() == null && recycler.getChildCount() > 0) {
-                        recycler.getChildAt(0).requestFocus();
-                    }
-                });
+                library.replaceAll(result);
+                adapter.setData(currentTabList(), MainActivity.this::focusFirstTileIfNone);
 
+                Log.i("Scan", "Finished scanning, " + result.size() + " apps in library");
+            } catch (Throwable t) {
+                Log.e("Scan", "onScanFinished crash", t);
             }
-        }.execute();
-    }
+        }
+    };
 
+    // ==============================
+    // NEU: Änderungen anderer Komponenten (PackageChangeReceiver, Scan) live übernehmen
+    // ==============================
+    private final LibraryState.Listener libraryListener = (state, changed, source) -> {
+        if (source == library || libraryPending) return; // eigene Änderung / kommt mit load()
+        Set<String> tabs = library.sync(state, changed);
+        // Nur neu zeichnen, wenn der sichtbare Tab betroffen ist
+        if (tabs.contains(GENRES.get(currentTab))) adapter.setData(currentTabList());
+    };
 
-private class ScanTask extends AsyncTask<Void, Void, List<AppEntry>> {
-    @Override
-    protected void onPreExecute() {
-        try {
-            overlayLoading.setVisibility(View.VISIBLE);
-        } catch (Throwable t) {
-            Log.e("ScanTask", "onPreExecute failed", t);
-        }
-    }
+    // Icon nach App-Update am selben Pfad neu geschrieben → sichtbare Kacheln neu binden
+    private final IconCacheManager.Listener iconListener = packages -> adapter.refreshIcons(packages);
 
     @Override
-    protected List<AppEntry> doInBackground(Void... voids) {
-        try {
-            return AppScanner.buildCache(MainActivity.this);
-        } catch (Throwable t) {
-            Log.e("ScanTask", "Error in background scan", t);
-            return new ArrayList<>();
-        }
+    protected void onDestroy() {
+        LibraryState.removeListener(libraryListener);
+        IconCacheManager.removeListener(iconListener);
+        prefetcher.detach();
+        ScanCoordinator.get(this).detach(scanClient);
+        super.onDestroy();
     }
 
     @Override
-    protected void onPostExecute(List<AppEntry> appEntries) {
-        try {
-            if (overlayLoading != null)
-                overlayLoading.setVisibility(View.GONE);
-
-            if (appEntries == null) {
-                Log.w("ScanTask", "appEntries is null, creating empty list");
-                appEntries = new ArrayList<>();
-            }
-
-            dataStore.save(appEntries, true);
-
-            allApps = appEntries;
-            markAllTabsDirty();
-
-            if (adapter != null) {
-                adapter.setData(filterByCurrentTab(allApps));
-                recycler.post(() -> {
-                    // Prüfen, ob überhaupt ein View fokussiert ist
-                    if (recycler.getFocusedChild() == null && recycler.getChildCount() > 0) {
-                        recycler.getChildAt(0).requestFocus();
-                    }
-                });
-
-            } else {
-                Log.w("ScanTask", "Adapter is null!");
-            }
-
-            Log.i("ScanTask", "Finished scanning, " + appEntries.size() + " apps found");
-
-        } catch (Throwable t) {
-            Log.e("ScanTask", "onPostExecute crash", t);
-        }
-    }
-}@Override
     public void onAppLaunch(AppEntry entry) {
         try {
             Intent launchIntent = getPackageManager().getLaunchIntentForPackage(entry.packageName);
@@ -505,36 +407,38 @@ private class ScanTask extends AsyncTask<Void, Void, List<AppEntry>> {
 
     @Override
     public void onGenreChange(AppEntry entry) {
+        if (libraryPending) return; // Bibliothek noch nicht geladen
         int idx = GENRES.indexOf(entry.genre);
         if (idx < 0) idx = 1;
         idx++;
         if (idx >= GENRES.size()) idx = 1; // skip favorites
-        entry.genre = GENRES.get(idx);
-        dataStore.saveOne(entry);
-        markAllTabsDirty();
-        adapter.setData(filterByCurrentTab(allApps));
-        recycler.post(() -> {
-            // Prüfen, ob überhaupt ein View fokussiert ist
-            if (recycler.getFocusedChild() == null && recycler.getChildCount() > 0) {
-                recycler.getChildAt(0).requestFocus();
-            }
-        });
+        library.setGenre(entry.packageName, GENRES.get(idx));
+        library.saveOne(entry.packageName);
+        adapter.setData(currentTabList(), this::focusFirstTileIfNone);
 
     }
 
     @Override
     public void onToggleFavorite(AppEntry entry) {
-        entry.favorite = !entry.favorite;
-        dataStore.saveOne(entry);
-        markAllTabsDirty();
-        if (currentTab == 0) adapter.setData(filterByCurrentTab(allApps));
-        recycler.post(() -> {
-            // Prüfen, ob überhaupt ein View fokussiert ist
-            if (recycler.getFocusedChild() == null && recycler.getChildCount() > 0) {
-                recycler.getChildAt(0).requestFocus();
-            }
-        });
+        if (libraryPending) return;
+        library.setFavorite(entry.packageName, !entry.favorite);
+        library.saveOne(entry.packageName);
+        if (currentTab == 0) adapter.setData(currentTabList(), this::focusFirstTileIfNone);
+
+    }
 
+    /**
+     * Erster Bildschirm der mit L1/R1 erreichbaren Tabs vorab in den Icon-Cache laden, den Tab in
+     * Bewegungsrichtung ({@code dir}: -1 links, 1 rechts) zuerst.
+     */
+    private void warmNeighbourTabs(int dir) {
+        List<AppEntry> left = currentTab > 0 ? library.tab(GENRES.get(currentTab - 1)) : null;
+        List<AppEntry> right = currentTab < GENRES.size() - 1 ? library.tab(GENRES.get(currentTab + 1)) : null;
+        if (dir < 0) {
+            prefetcher.warmTabs(left, right);
+        } else {
+            prefetcher.warmTabs(right, left);
+        }
     }
 
     @Override
@@ -543,9 +447,11 @@ private class ScanTask extends AsyncTask<Void, Void, List<AppEntry>> {
             int code = event.getKeyCode();
             if (code == KeyEvent.KEYCODE_BUTTON_L1) {
                 selectTab(Math.max(0, currentTab - 1));
+                warmNeighbourTabs(-1);
                 return true;
             } else if (code == KeyEvent.KEYCODE_BUTTON_R1) {
                 selectTab(Math.min(GENRES.size() - 1, currentTab + 1));
+                warmNeighbourTabs(1);
                 return true;
             }
         }
@@ -689,6 +595,14 @@ private class ScanTask extends AsyncTask<Void, Void, List<AppEntry>> {
         super.onPause();
         // Timer stoppen, solange der Launcher nicht im Vordergrund ist
         networkHandler.removeCallbacks(networkUpdateRunnable);
+        // Ausstehende Änderungen sofort schreiben
+        dataStore.flush();
+    }
+
+    @Override
+    protected void onStop() {
+        dataStore.flush();
+        super.onStop();
     }
 
     @Override
@@ -0,0 +1,181 @@
+package com.ast.ouyalaunch;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Background, coalescing queue for package broadcasts. PackageChangeReceiver hands each event
+ * over (together with its goAsync() PendingResult) and returns immediately. Events arriving within
+ * {@link #DEBOUNCE_MS} of each other are merged into one batch: per package only the last event
+ * counts, and the whole batch costs one apps.json load and one save.
+ *
+ * A batch is never held back longer than {@link #MAX_DELAY_MS} after its first event, so the
+ * pending broadcasts are finished well within the receiver timeout even during a long storm.
+ * The batch itself runs through {@link ScanCoordinator#runExclusive(Runnable)}, so it never
+ * overlaps a full scan (a running one is superseded and resumed afterwards).
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas).
+ */
+public final class PackageChangeQueue {
+
+    private static final String TAG = "PackageChangeQueue";
+
+    static final long DEBOUNCE_MS = 500L;
+    static final long MAX_DELAY_MS = 3000L;
+
+    /** What to do with a package once the batch runs. */
+    enum Op { UPDATE, REMOVE }
+
+    private static PackageChangeQueue instance;
+
+    private final Context appCtx;
+    private final Handler handler;
+
+    // Guarded by "this"
+    private LinkedHashMap<String, Op> pending = new LinkedHashMap<String, Op>();
+    private List<BroadcastReceiver.PendingResult> waiting = new ArrayList<BroadcastReceiver.PendingResult>();
+    private long firstEventAt = -1L;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override public void run() {
+            flush();
+        }
+    };
+
+    private PackageChangeQueue(Context ctx) {
+        this.appCtx = ctx.getApplicationContext();
+        HandlerThread t = new HandlerThread("PackageChanges", Process.THREAD_PRIORITY_BACKGROUND);
+        t.start();
+        this.handler = new Handler(t.getLooper());
+    }
+
+    public static synchronized PackageChangeQueue get(Context ctx) {
+        if (instance == null) instance = new PackageChangeQueue(ctx);
+        return instance;
+    }
+
+    /**
+     * Queue an event for {@code pkg}. {@code result} (may be null) is finished once the batch
+     * containing the event has been written.
+     */
+    public synchronized void enqueue(String pkg, Op op, BroadcastReceiver.PendingResult result) {
+        // Later events win: REMOVED then ADDED is an update, ADDED then REMOVED a removal
+        pending.remove(pkg);
+        pending.put(pkg, op);
+        if (result != null) waiting.add(result);
+
+        long now = SystemClock.uptimeMillis();
+        if (firstEventAt < 0) firstEventAt = now;
+        long delay = Math.min(DEBOUNCE_MS, Math.max(0L, firstEventAt + MAX_DELAY_MS - now));
+        handler.removeCallbacks(flushRunnable);
+        handler.postDelayed(flushRunnable, delay);
+    }
+
+    /** Runs on the queue thread; hands the collected batch to the scan coordinator. */
+    private void flush() {
+        final Map<String, Op> batch;
+        final List<BroadcastReceiver.PendingResult> results;
+        synchronized (this) {
+            batch = pending;
+            results = waiting;
+            pending = new LinkedHashMap<String, Op>();
+            waiting = new ArrayList<BroadcastReceiver.PendingResult>();
+            firstEventAt = -1L;
+        }
+
+        ScanCoordinator.get(appCtx).runExclusive(new Runnable() {
+            @Override public void run() {
+                try {
+                    if (!batch.isEmpty()) apply(batch);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Failed applying package changes " + batch.keySet(), t);
+                } finally {
+                    for (int i = 0; i < results.size(); i++) {
+                        try { results.get(i).finish(); } catch (Throwable ignore) {}
+                    }
+                }
+            }
+        });
+    }
+
+    private void apply(Map<String, Op> batch) {
+        DataStore store = new DataStore(appCtx);
+        LibraryRepository library = new LibraryRepository(store).load();
+        ScanManifest manifest = new ScanManifest(appCtx);
+        manifest.load();
+        boolean changed = false;
+
+        List<String> revisit = new ArrayList<String>();
+        List<String> refreshed = new ArrayList<String>();
+        for (Map.Entry<String, Op> e : batch.entrySet()) {
+            String pkg = e.getKey();
+            if (e.getValue() == Op.REMOVE) {
+                changed |= applyRemoved(library, manifest, pkg);
+                // Without its ".launcher" twin the base package is eligible again
+                String base = AppScanner.launcherTwinBase(pkg);
+                if (base != null && !batch.containsKey(base)) revisit.add(base);
+            } else {
+                changed |= applyUpdated(library, manifest, pkg, refreshed);
+            }
+        }
+        for (int i = 0; i < revisit.size(); i++) {
+            changed |= applyUpdated(library, manifest, revisit.get(i), refreshed);
+        }
+
+        manifest.save();
+        if (IconAtlas.isEnabled()) IconAtlas.get(appCtx).commit();
+        if (changed) {
+            library.save();
+            IconCacheManager.get(appCtx).sweep(library.all(), library.isComplete());
+        }
+        // A replaced APK keeps its icon path, so the library may not change at all
+        IconCacheManager.notifyIconsChanged(refreshed);
+        Log.i(TAG, "Applied " + batch.size() + " package change(s), changed=" + changed);
+    }
+
+    private boolean applyRemoved(LibraryRepository library, ScanManifest manifest, String pkg) {
+        AppScanner.forgetPackage(appCtx, pkg, manifest);
+        if (library.remove(pkg) == null) return false;
+        Log.i(TAG, "Removed uninstalled app " + pkg);
+        return true;
+    }
+
+    /** Adds {@code pkg} to {@code refreshed} if a known app was rescanned (its icon may be new). */
+    private boolean applyUpdated(LibraryRepository library, ScanManifest manifest, String pkg,
+                                 List<String> refreshed) {
+        AppEntry scanned = AppScanner.scanSinglePackage(appCtx, pkg, manifest);
+
+        if (scanned == null) {
+            // Not (or no longer) OUYA-compatible
+            return library.remove(pkg) != null;
+        }
+
+        if (library.contains(pkg)) {
+            // Keep the user's genre and favorite, take title and icon from the new APK
+            library.updateFromScan(pkg, scanned.title, scanned.iconPath);
+            refreshed.add(pkg);
+        } else {
+            // A new ".launcher" twin replaces its base package and inherits its settings
+            String base = AppScanner.launcherTwinBase(pkg);
+            AppEntry old = base != null ? library.remove(base) : null;
+            if (old != null) {
+                scanned.genre = old.genre;
+                scanned.favorite = old.favorite;
+                AppScanner.forgetPackage(appCtx, base, manifest);
+            }
+            library.add(scanned);
+            Log.i(TAG, "Added app " + pkg + " (" + scanned.title + ")");
+        }
+        return true;
+    }
+}
@@ -1,25 +1,45 @@
-
 package com.ast.ouyalaunch;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import java.util.List;
+import android.net.Uri;
 
+/**
+ * Keeps apps.json in sync with installs, updates and uninstalls. Only the package named in the
+ * broadcast is looked at:
+ * - PACKAGE_ADDED:    probe that one APK and add it if it is OUYA-compatible.
+ * - PACKAGE_REPLACED: refresh title and icon, keep the user's genre and favorite flag.
+ * - PACKAGE_REMOVED:  drop the entry and its cached icon.
+ * An update also sends REMOVED/ADDED with EXTRA_REPLACING; those are skipped, REPLACED follows.
+ *
+ * The work itself happens off the main thread in {@link PackageChangeQueue}, which also merges
+ * bursts of broadcasts (bulk sideloads, store updates) into a single pass.
+ */
 public class PackageChangeReceiver extends BroadcastReceiver {
+
     @Override
     public void onReceive(Context context, Intent intent) {
-        // On package add/remove, rescan and merge new apps
-        List<AppEntry> scanned = AppScanner.buildCache(context);
-        DataStore store = new DataStore(context);
-        List<AppEntry> existing = store.load();
-        for (AppEntry e : scanned) {
-            boolean found = false;
-            for (AppEntry old : existing) {
-                if (old.packageName.equals(e.packageName)) { found = true; break; }
-            }
-            if (!found) existing.add(e);
+        String action = intent.getAction();
+        Uri data = intent.getData();
+        String pkg = data != null ? data.getSchemeSpecificPart() : null;
+        if (action == null || pkg == null || pkg.length() == 0) return;
+        if (pkg.equals(context.getPackageName())) return;
+
+        boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+        PackageChangeQueue.Op op;
+        if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
+            if (replacing) return;
+            op = PackageChangeQueue.Op.REMOVE;
+        } else if (Intent.ACTION_PACKAGE_ADDED.equals(action)) {
+            if (replacing) return;
+            op = PackageChangeQueue.Op.UPDATE;
+        } else if (Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
+            op = PackageChangeQueue.Op.UPDATE;
+        } else {
+            return;
         }
-        store.save(existing, true);
+
+        PackageChangeQueue.get(context).enqueue(pkg, op, goAsync());
     }
 }
@@ -0,0 +1,199 @@
+package com.ast.ouyalaunch;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Process-wide single-flight coordinator for everything that writes apps.json, the scan manifest
+ * and files/icons. All of it runs on one worker thread, so a first-run scan, an L2+R2 rescan and
+ * package broadcasts can no longer race each other.
+ *
+ * - {@link #requestFullScan(Client)} joins the full scan that is already in flight (or the queued
+ *   follow-up), so any number of requests costs one scan and every caller gets its result once.
+ *   A second scan is only queued when something changed after the running scan started, and
+ *   package changes - the only such source - arrive through {@link #runExclusive(Runnable)}.
+ * - {@link #runExclusive(Runnable)} (package broadcast batches) supersedes a running full scan: the
+ *   scan is cancelled between two packages, the task runs, and the scan is re-queued as the single
+ *   follow-up, keeping its waiting clients. Thanks to the scan manifest the follow-up only probes
+ *   what the cancelled scan had not reached yet.
+ *
+ * Client callbacks are delivered on the main thread.
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas).
+ */
+public final class ScanCoordinator {
+
+    private static final String TAG = "ScanCoordinator";
+
+    /** Receives the results of a full scan, on the main thread. */
+    public interface Client {
+        /** A newly cached app, reported while the scan is still running. */
+        void onAppFound(AppEntry entry);
+
+        /** The merged, saved library once the scan has completed. */
+        void onScanFinished(List<AppEntry> apps);
+    }
+
+    private static ScanCoordinator instance;
+
+    private final Context appCtx;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ScanCoordinator");
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        }
+    });
+
+    // Guarded by "this"
+    private FullScan current;
+    private FullScan followUp;
+
+    private ScanCoordinator(Context ctx) {
+        this.appCtx = ctx.getApplicationContext();
+    }
+
+    public static synchronized ScanCoordinator get(Context ctx) {
+        if (instance == null) instance = new ScanCoordinator(ctx);
+        return instance;
+    }
+
+    /**
+     * Request a full scan; joins the scan in flight, or the follow-up if a package change has
+     * already superseded it.
+     */
+    public synchronized void requestFullScan(Client client) {
+        if (followUp != null) {
+            followUp.addClient(client);
+        } else if (current != null) {
+            current.addClient(client); // runExclusive() always queues a follow-up when it cancels
+        } else {
+            current = new FullScan();
+            current.addClient(client);
+            worker.execute(current);
+        }
+    }
+
+    /** True while a full scan is running or queued. */
+    public synchronized boolean isScanning() {
+        return current != null || followUp != null;
+    }
+
+    /** Stop delivering callbacks to {@code client} (e.g. from Activity.onDestroy). */
+    public synchronized void detach(Client client) {
+        if (current != null) current.clients.remove(client);
+        if (followUp != null) followUp.clients.remove(client);
+    }
+
+    /**
+     * Run {@code task} on the coordinator thread, exclusive with scans. A running full scan is
+     * cancelled and re-queued behind the task.
+     */
+    public synchronized void runExclusive(Runnable task) {
+        if (current != null && !current.cancel.isCanceled()) {
+            Log.i(TAG, "Superseding running scan");
+            current.cancel.cancel();
+            if (followUp == null) followUp = new FullScan();
+            for (Client c : current.clients) followUp.addClient(c);
+            current.clients.clear();
+        }
+        worker.execute(task);
+    }
+
+    /**
+     * Queue an icon cache sweep against the saved library (e.g. after an app was removed from the
+     * launcher). Runs after any scan in flight and does not cancel it.
+     */
+    public void sweepIconCache() {
+        worker.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    LibraryState state = LibraryState.get(new DataStore(appCtx));
+                    IconCacheManager.get(appCtx).sweep(state.apps(), state.isComplete());
+                } catch (Throwable t) {
+                    Log.w(TAG, "Icon cache sweep failed: " + t.getMessage());
+                }
+            }
+        });
+    }
+
+    private synchronized void onScanDone(FullScan scan) {
+        if (current != scan) return;
+        current = followUp;
+        followUp = null;
+        if (current != null) worker.execute(current);
+    }
+
+    private final class FullScan implements Runnable {
+        final CancellationSignal cancel = new CancellationSignal();
+        final List<Client> clients = new CopyOnWriteArrayList<Client>();
+
+        void addClient(Client c) {
+            if (c != null && !clients.contains(c)) clients.add(c);
+        }
+
+        @Override
+        public void run() {
+            List<AppEntry> result = null;
+            try {
+                if (!cancel.isCanceled()) result = scanAndMerge(this);
+            } catch (Throwable t) {
+                Log.e(TAG, "Full scan failed", t);
+                result = new ArrayList<AppEntry>();
+            }
+            // Snapshot before onScanDone, a superseded scan has already handed its clients over
+            final List<Client> targets = new ArrayList<Client>(clients);
+            onScanDone(this);
+            if (result == null || cancel.isCanceled()) return;
+
+            final List<AppEntry> apps = result;
+            mainHandler.post(new Runnable() {
+                @Override public void run() {
+                    for (int i = 0; i < targets.size(); i++) {
+                        targets.get(i).onScanFinished(apps);
+                    }
+                }
+            });
+        }
+
+        void publish(final AppEntry e) {
+            if (clients.isEmpty()) return;
+            mainHandler.post(new Runnable() {
+                @Override public void run() {
+                    // Clients that were detached or handed over in the meantime get nothing
+                    for (Client c : clients) c.onAppFound(e);
+                }
+            });
+        }
+    }
+
+    /** Scan, merge into the saved library (genres and favorites are kept) and save. */
+    private List<AppEntry> scanAndMerge(final FullScan scan) {
+        List<AppEntry> fresh = AppScanner.buildCache(appCtx, AppScanner.DEFAULT_PARALLELISM,
+                new AppScanner.ScanListener() {
+                    @Override public void onAppFound(AppEntry entry) {
+                        scan.publish(entry);
+                    }
+                }, scan.cancel);
+        if (scan.cancel.isCanceled()) return null;
+
+        // Only new packages are added, known apps keep their genre and favorite
+        LibraryRepository library = new LibraryRepository(new DataStore(appCtx)).load();
+        library.mergeScan(fresh);
+        library.save();
+        List<AppEntry> merged = library.toList();
+        IconCacheManager.get(appCtx).sweep(merged, library.isComplete());
+        return merged;
+    }
+}
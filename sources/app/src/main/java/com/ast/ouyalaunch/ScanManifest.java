@@ -0,0 +1,141 @@
+package com.ast.ouyalaunch;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Per-APK scan results persisted next to apps.json ("scan_manifest.json"), keyed by package name.
+ * AppScanner uses it to skip APKs whose fingerprint (sourceDir, lastUpdateTime, APK size) did not
+ * change since the last scan, so a rescan only opens the packages that were installed or updated.
+ *
+ * Negative results (no ouya_icon.png) are recorded as well, otherwise every non-OUYA app would be
+ * re-probed on each rescan.
+ *
+ * NOTE: Keep Java 7 compatible (no lambdas). Methods are synchronized, the parallel scan workers
+ * share one instance.
+ */
+public class ScanManifest {
+
+    private static final String TAG = "ScanManifest";
+    private static final String FILE = "scan_manifest.json";
+
+    /** One scanned APK. iconEntry == null means "scanned, no OUYA icon". */
+    public static class Record {
+        public String sourceDir;
+        public long lastUpdateTime;
+        public long apkSize;
+        public String iconEntry;
+        public String title;
+
+        public Record() {}
+
+        public Record(String sourceDir, long lastUpdateTime, long apkSize, String iconEntry, String title) {
+            this.sourceDir = sourceDir;
+            this.lastUpdateTime = lastUpdateTime;
+            this.apkSize = apkSize;
+            this.iconEntry = iconEntry;
+            this.title = title;
+        }
+
+        /** True if the APK behind this record is unchanged. */
+        public boolean matches(String sourceDir, long lastUpdateTime, long apkSize) {
+            return this.sourceDir != null && this.sourceDir.equals(sourceDir)
+                    && this.lastUpdateTime == lastUpdateTime
+                    && this.apkSize == apkSize;
+        }
+    }
+
+    private final File file;
+    private final Gson gson = new Gson();
+    private Map<String, Record> records = new HashMap<String, Record>();
+    private boolean dirty;
+
+    public ScanManifest(Context ctx) {
+        this.file = new File(ctx.getApplicationContext().getFilesDir(), FILE);
+    }
+
+    public synchronized Record get(String pkg) {
+        return records.get(pkg);
+    }
+
+    public synchronized void put(String pkg, Record r) {
+        records.put(pkg, r);
+        dirty = true;
+    }
+
+    public synchronized void remove(String pkg) {
+        if (records.remove(pkg) != null) dirty = true;
+    }
+
+    /** Drop records of packages that are no longer installed/launchable. */
+    public synchronized void retainOnly(Collection<String> packages) {
+        Iterator<String> it = records.keySet().iterator();
+        while (it.hasNext()) {
+            if (!packages.contains(it.next())) {
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    public synchronized void load() {
+        records = new HashMap<String, Record>();
+        dirty = false;
+        if (!file.exists()) return;
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8")));
+            try {
+                Type type = new TypeToken<HashMap<String, Record>>(){}.getType();
+                Map<String, Record> m = gson.fromJson(br, type);
+                if (m != null) records = m;
+            } finally {
+                br.close();
+            }
+        } catch (Throwable t) {
+            // A broken manifest only costs a full rescan
+            Log.w(TAG, "Failed to read " + file.getAbsolutePath() + ": " + t.getMessage());
+            records = new HashMap<String, Record>();
+        }
+    }
+
+    /** Write the manifest if anything changed since load(). Temp file + rename, like apps.json. */
+    public synchronized void save() {
+        if (!dirty) return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp, false), Charset.forName("UTF-8")));
+            try {
+                gson.toJson(records, bw);
+            } finally {
+                bw.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+            }
+            dirty = false;
+        } catch (Throwable t) {
+            Log.w(TAG, "Failed to write " + file.getAbsolutePath() + ": " + t.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.ast.ouyalaunch.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reproducible corpus of synthetic, APK-shaped ZIP files for the scanner benchmarks.
+ *
+ * Each APK has an AndroidManifest.xml, a classes.dex carrying most of the requested size, and
+ * filler entries spread over res/drawable-*, res/layout and assets so the central directory looks
+ * like a real game's. ouya_icon.png (a valid 732x412 PNG) is placed according to {@link IconLayout}.
+ * All content is derived from a fixed seed and the spec, so every run and every commit measures
+ * the same bytes. Files are generated once and reused; the name encodes the spec.
+ */
+public final class ApkCorpus {
+
+    /** Bump when the generated content changes, so stale corpora are not reused. */
+    private static final int GENERATOR_VERSION = 1;
+    private static final long SEED = 0x0DA1A5EEDL;
+
+    private static final String[] DENSITIES = {"ldpi", "mdpi", "hdpi", "xhdpi", "xxhdpi", "xxxhdpi"};
+
+    /** Where (and whether) the APK carries ouya_icon.png. */
+    public enum IconLayout {
+        /** No OUYA icon: a non-OUYA app. */
+        NONE,
+        /** res/drawable-xhdpi/ouya_icon.png, the usual OUYA layout. */
+        SINGLE,
+        /** One icon per density bucket from mdpi to xxhdpi; the scanner must rank them. */
+        MULTI_DENSITY,
+        /** res/drawable/ouya_icon.png written as the very last entry. */
+        LAST
+    }
+
+    public static final class Spec {
+        public final int entries;
+        public final long apkBytes;
+        public final IconLayout icon;
+        public final boolean deflated;
+
+        public Spec(int entries, long apkBytes, IconLayout icon, boolean deflated) {
+            this.entries = Math.max(2, entries);
+            this.apkBytes = Math.max(0, apkBytes);
+            this.icon = icon;
+            this.deflated = deflated;
+        }
+
+        String fileName() {
+            return String.format(Locale.US, "v%d-%d-%d-%s-%s.apk", GENERATOR_VERSION, entries, apkBytes,
+                    icon.name().toLowerCase(Locale.US), deflated ? "deflated" : "stored");
+        }
+    }
+
+    private ApkCorpus() {}
+
+    /** Corpus directory: -Douyalaunch.corpus.dir, else ${java.io.tmpdir}/ouyalaunch-apk-corpus. */
+    public static File dir() {
+        String custom = System.getProperty("ouyalaunch.corpus.dir");
+        File dir = custom != null ? new File(custom)
+                : new File(System.getProperty("java.io.tmpdir"), "ouyalaunch-apk-corpus");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create corpus dir " + dir);
+        }
+        return dir;
+    }
+
+    /** The APK for {@code spec}, generating it on first use. */
+    public static File apk(Spec spec) throws IOException {
+        File f = new File(dir(), spec.fileName());
+        if (!f.isFile()) generate(spec, f, SEED ^ spec.fileName().hashCode());
+        return f;
+    }
+
+    /**
+     * A mixed installation like a full rescan sees: APKs of varying size and layout, about a quarter of
+     * them without OUYA icon, plus {@code twins} ".launcher" pairs (base APK without icon, twin
+     * with icon) named "&lt;pkg&gt;.apk" / "&lt;pkg&gt;.launcher.apk".
+     */
+    public static List<File> installation(int apps, int twins) throws IOException {
+        File dir = new File(dir(), String.format(Locale.US, "v%d-installation-%d-%d", GENERATOR_VERSION, apps, twins));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + dir);
+        }
+        Random rnd = new Random(SEED + apps * 31L + twins);
+        IconLayout[] layouts = IconLayout.values();
+        List<File> out = new ArrayList<File>(apps + twins * 2);
+        for (int i = 0; i < apps; i++) {
+            int entries = 100 + rnd.nextInt(3000);
+            long size = (256L << 10) + (long) rnd.nextInt(8 << 20);
+            IconLayout icon = layouts[rnd.nextInt(layouts.length)];
+            out.add(generateOnce(new File(dir, String.format(Locale.US, "com.bench.app%03d.apk", i)),
+                    new Spec(entries, size, icon, rnd.nextBoolean()), rnd.nextLong()));
+        }
+        for (int i = 0; i < twins; i++) {
+            String pkg = String.format(Locale.US, "com.bench.twin%03d", i);
+            out.add(generateOnce(new File(dir, pkg + ".apk"),
+                    new Spec(800, 8L << 20, IconLayout.NONE, true), rnd.nextLong()));
+            out.add(generateOnce(new File(dir, pkg + ".launcher.apk"),
+                    new Spec(150, 256L << 10, IconLayout.SINGLE, false), rnd.nextLong()));
+        }
+        return out;
+    }
+
+    /** A valid (decodable) PNG of the OUYA icon size, 732x412, filled with one colour. */
+    public static byte[] ouyaIconPng() throws IOException {
+        int w = 732;
+        int h = 412;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream png = new DataOutputStream(out);
+        png.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(ihdr);
+        d.writeInt(w);
+        d.writeInt(h);
+        d.writeByte(8);  // bit depth
+        d.writeByte(2);  // colour type RGB
+        d.writeByte(0);  // compression
+        d.writeByte(0);  // filter
+        d.writeByte(0);  // interlace
+        writeChunk(png, "IHDR", ihdr.toByteArray());
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DeflaterOutputStream z = new DeflaterOutputStream(raw);
+        byte[] row = new byte[1 + w * 3];
+        for (int x = 0; x < w; x++) {
+            row[1 + x * 3] = (byte) 0xE6;
+            row[2 + x * 3] = (byte) 0x4A;
+            row[3 + x * 3] = (byte) 0x19;
+        }
+        for (int y = 0; y < h; y++) z.write(row);
+        z.close();
+        writeChunk(png, "IDAT", raw.toByteArray());
+        writeChunk(png, "IEND", new byte[0]);
+        png.flush();
+        return out.toByteArray();
+    }
+
+    // ---------- internal helpers ----------
+
+    private static File generateOnce(File f, Spec spec, long seed) throws IOException {
+        if (!f.isFile()) generate(spec, f, seed);
+        return f;
+    }
+
+    private static void generate(Spec spec, File dst, long seed) throws IOException {
+        Random rnd = new Random(seed);
+        byte[] icon = ouyaIconPng();
+
+        List<String> iconPaths = new ArrayList<String>();
+        switch (spec.icon) {
+            case SINGLE:
+                iconPaths.add("res/drawable-xhdpi/ouya_icon.png");
+                break;
+            case MULTI_DENSITY:
+                iconPaths.add("res/drawable-mdpi/ouya_icon.png");
+                iconPaths.add("res/drawable-hdpi/ouya_icon.png");
+                iconPaths.add("res/drawable-xhdpi/ouya_icon.png");
+                iconPaths.add("res/drawable-xxhdpi/ouya_icon.png");
+                break;
+            default:
+                break;
+        }
+
+        int fillers = Math.max(0, spec.entries - 2 - iconPaths.size() - (spec.icon == IconLayout.LAST ? 1 : 0));
+        long fillerBudget = Math.max(0, spec.apkBytes / 4 - icon.length * (long) iconPaths.size());
+        int fillerSize = fillers > 0 ? (int) Math.min(64 << 10, Math.max(32, fillerBudget / fillers)) : 0;
+        long dexSize = Math.max(1024, spec.apkBytes - (long) fillers * fillerSize);
+
+        File tmp = new File(dst.getPath() + ".tmp");
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try {
+            zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+            write(zip, "AndroidManifest.xml", payload(rnd, 2048), spec.deflated);
+            write(zip, "classes.dex", payload(rnd, (int) Math.min(Integer.MAX_VALUE - 8, dexSize)), spec.deflated);
+
+            // Icons somewhere in the middle of the resources, like aapt would order them
+            int iconAt = fillers / 2;
+            for (int i = 0; i < fillers; i++) {
+                if (i == iconAt) {
+                    for (String p : iconPaths) write(zip, p, icon, spec.deflated);
+                }
+                write(zip, fillerName(rnd, i), payload(rnd, fillerSize), spec.deflated);
+            }
+            if (fillers == 0) {
+                for (String p : iconPaths) write(zip, p, icon, spec.deflated);
+            }
+            if (spec.icon == IconLayout.LAST) {
+                write(zip, "res/drawable/ouya_icon.png", icon, spec.deflated);
+            }
+        } finally {
+            zip.close();
+        }
+        if (!tmp.renameTo(dst)) {
+            throw new IOException("Cannot rename " + tmp + " to " + dst);
+        }
+    }
+
+    private static String fillerName(Random rnd, int i) {
+        switch (rnd.nextInt(4)) {
+            case 0:
+                return String.format(Locale.US, "res/drawable-%s/img_%05d.png", DENSITIES[rnd.nextInt(DENSITIES.length)], i);
+            case 1:
+                return String.format(Locale.US, "res/layout/layout_%05d.xml", i);
+            case 2:
+                return String.format(Locale.US, "res/raw/sound_%05d.ogg", i);
+            default:
+                return String.format(Locale.US, "assets/data/level_%05d.bin", i);
+        }
+    }
+
+    /** Half random, half repetitive bytes, so DEFLATED entries compress roughly like real assets. */
+    private static byte[] payload(Random rnd, int size) {
+        byte[] b = new byte[size];
+        int half = size / 2;
+        byte[] noise = new byte[half];
+        rnd.nextBytes(noise);
+        System.arraycopy(noise, 0, b, 0, half);
+        for (int i = half; i < size; i++) b[i] = (byte) (i % 61);
+        return b;
+    }
+
+    private static void write(ZipOutputStream zip, String name, byte[] data, boolean deflated) throws IOException {
+        ZipEntry e = new ZipEntry(name);
+        if (deflated) {
+            e.setMethod(ZipEntry.DEFLATED);
+        } else {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            e.setMethod(ZipEntry.STORED);
+            e.setSize(data.length);
+            e.setCompressedSize(data.length);
+            e.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(e);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    private static void writeChunk(DataOutputStream png, String type, byte[] data) throws IOException {
+        byte[] t = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data);
+        png.writeInt(data.length);
+        png.write(t);
+        png.write(data);
+        png.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,96 @@
+package com.ast.ouyalaunch.bench;
+
+import com.ast.ouyalaunch.ApkZipProbe;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finding ouya_icon.png in one APK, i.e. AppScanner.findOuyaIconInApk: {@link #probe()} is its
+ * ApkZipProbe fast path, {@link #zipFile()} the java.util.zip.ZipFile fallback it uses for Zip64
+ * and other unusual archives (and what every scan used before the probe existed).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ApkProbeBenchmark {
+
+    @Param({"100", "1000", "10000", "50000"})
+    public int entries;
+
+    @Param({"SINGLE", "MULTI_DENSITY", "LAST", "NONE"})
+    public ApkCorpus.IconLayout icon;
+
+    /** 1, 8 and 64 MiB, so a size dependence of either path shows up. */
+    @Param({"1048576", "8388608", "67108864"})
+    public long apkBytes;
+
+    @Param({"false", "true"})
+    public boolean deflated;
+
+    private File apk;
+
+    @Setup
+    public void setUp() throws IOException {
+        apk = ApkCorpus.apk(new ApkCorpus.Spec(entries, apkBytes, icon, deflated));
+    }
+
+    @Benchmark
+    public ApkZipProbe.Entry probe() throws IOException {
+        ApkZipProbe probe = ApkZipProbe.open(apk);
+        try {
+            return probe.findOuyaIcon();
+        } finally {
+            probe.close();
+        }
+    }
+
+    @Benchmark
+    public String zipFile() throws IOException {
+        return findWithZipFile(apk);
+    }
+
+    /** Same ranking as AppScanner's ZipFile fallback. */
+    static String findWithZipFile(File apk) throws IOException {
+        ZipFile zf = new ZipFile(apk);
+        try {
+            List<String> candidates = new ArrayList<String>();
+            Enumeration<? extends ZipEntry> en = zf.entries();
+            while (en.hasMoreElements()) {
+                String name = en.nextElement().getName();
+                String lower = name.toLowerCase(Locale.US);
+                if (lower.endsWith("/" + ApkZipProbe.ICON_FILE_NAME) || lower.equals(ApkZipProbe.ICON_FILE_NAME)) {
+                    candidates.add(name);
+                }
+            }
+            int bestScore = -1;
+            String best = null;
+            for (String n : candidates) {
+                int score = ApkZipProbe.densityScore(n.toLowerCase(Locale.US));
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = n;
+                }
+            }
+            return best;
+        } finally {
+            zf.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.ast.ouyalaunch.bench;
+
+import com.ast.ouyalaunch.ApkZipProbe;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Density ranking of icon entry paths. {@link #densityScore()} scores pre-lowercased paths,
+ * {@link #lowercaseAndScore()} includes the toLowerCase the scanner does per candidate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DensityScoreBenchmark {
+
+    private static final int PATHS = 1024;
+
+    private static final String[] DIRS = {
+            "res/drawable", "res/drawable-mdpi", "res/drawable-hdpi", "res/drawable-xhdpi",
+            "res/drawable-xxhdpi", "res/drawable-xxxhdpi", "res/drawable-xhdpi-v4", "res/drawable-land-hdpi",
+            "res/mipmap-xxhdpi", "res/Drawable-XHDPI", "assets", ""
+    };
+
+    private final String[] paths = new String[PATHS];
+    private final String[] lowerPaths = new String[PATHS];
+
+    @Setup
+    public void setUp() {
+        Random rnd = new Random(42);
+        for (int i = 0; i < PATHS; i++) {
+            String dir = DIRS[rnd.nextInt(DIRS.length)];
+            paths[i] = dir.length() > 0 ? dir + "/" + ApkZipProbe.ICON_FILE_NAME : ApkZipProbe.ICON_FILE_NAME;
+            lowerPaths[i] = paths[i].toLowerCase(Locale.US);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATHS)
+    public int densityScore() {
+        int sum = 0;
+        for (int i = 0; i < PATHS; i++) sum += ApkZipProbe.densityScore(lowerPaths[i]);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATHS)
+    public int lowercaseAndScore() {
+        int sum = 0;
+        for (int i = 0; i < PATHS; i++) sum += ApkZipProbe.densityScore(paths[i].toLowerCase(Locale.US));
+        return sum;
+    }
+}
@@ -0,0 +1,125 @@
+package com.ast.ouyalaunch.bench;
+
+import com.ast.ouyalaunch.ApkZipProbe;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+/**
+ * The icon extract-and-cache step of AppScanner.scanPackage: find ouya_icon.png, check the PNG
+ * header and copy it into the icon cache. {@link #scanInstallation()} runs it over a whole mixed
+ * installation, including ".launcher" twin pairs (the base APK is skipped like the scanner does).
+ *
+ * The Bitmap decode fallback for broken PNGs and the thumbnail step need Android and are not
+ * covered here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IconExtractBenchmark {
+
+    private static final String LAUNCHER_APK_SUFFIX = ".launcher.apk";
+
+    @Param({"false", "true"})
+    public boolean deflated;
+
+    @Param({"1000"})
+    public int entries;
+
+    @Param({"40"})
+    public int installedApps;
+
+    @Param({"8"})
+    public int launcherTwins;
+
+    private File apk;
+    private File cacheDir;
+    private File out;
+    private List<File> installation;
+    private Set<String> twinBases;
+
+    @Setup
+    public void setUp() throws IOException {
+        apk = ApkCorpus.apk(new ApkCorpus.Spec(entries, 8L << 20, ApkCorpus.IconLayout.MULTI_DENSITY, deflated));
+        installation = ApkCorpus.installation(installedApps, launcherTwins);
+        twinBases = new HashSet<String>();
+        for (File f : installation) {
+            String n = f.getName();
+            if (n.endsWith(LAUNCHER_APK_SUFFIX)) {
+                twinBases.add(n.substring(0, n.length() - LAUNCHER_APK_SUFFIX.length()) + ".apk");
+            }
+        }
+        cacheDir = new File(ApkCorpus.dir(), "icon-cache-" + System.nanoTime());
+        if (!cacheDir.mkdirs()) throw new IOException("Cannot create " + cacheDir);
+        out = new File(cacheDir, "com.bench.single.png");
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        cacheDir.delete();
+    }
+
+    @Benchmark
+    public boolean extractAndCache() throws IOException {
+        return extract(apk, out);
+    }
+
+    @Benchmark
+    public boolean extractAndCacheZipFile() throws IOException {
+        String name = ApkProbeBenchmark.findWithZipFile(apk);
+        if (name == null) return false;
+        ZipFile zf = new ZipFile(apk);
+        try {
+            InputStream is = zf.getInputStream(zf.getEntry(name));
+            try {
+                return ApkZipProbe.copyPngStream(is, out);
+            } finally {
+                is.close();
+            }
+        } finally {
+            zf.close();
+        }
+    }
+
+    @Benchmark
+    public int scanInstallation() throws IOException {
+        int cached = 0;
+        for (int i = 0; i < installation.size(); i++) {
+            File f = installation.get(i);
+            if (twinBases.contains(f.getName())) continue;
+            String pkg = f.getName().substring(0, f.getName().length() - 4);
+            if (extract(f, new File(cacheDir, pkg + ".png"))) cached++;
+        }
+        return cached;
+    }
+
+    private static boolean extract(File apk, File dst) throws IOException {
+        ApkZipProbe probe = ApkZipProbe.open(apk);
+        try {
+            ApkZipProbe.Entry e = probe.findOuyaIcon();
+            return e != null && probe.copyPngTo(e, dst);
+        } finally {
+            probe.close();
+        }
+    }
+}